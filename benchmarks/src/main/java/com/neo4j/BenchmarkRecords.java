@@ -0,0 +1,38 @@
+package com.neo4j;
+
+import org.neo4j.driver.Value;
+import org.neo4j.driver.Values;
+import org.neo4j.driver.internal.InternalRecord;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Builds result records shaped like those of the shipped collect2.cypher, with a request id, the ids of the users who
+ * viewed it and when it was last updated, for benchmarks that do not need a database.
+ */
+final class BenchmarkRecords {
+
+    private static final List<String> KEYS = List.of("requestId", "viewedByUserIds", "lastUpdated");
+
+    private BenchmarkRecords() {
+    }
+
+    static List<org.neo4j.driver.Record> create(int numberOfRecords) {
+        Random random = new Random(42);
+        List<org.neo4j.driver.Record> records = new ArrayList<org.neo4j.driver.Record>(numberOfRecords);
+        for(int index = 0; index < numberOfRecords; index++) {
+            List<String> viewedByUserIds = new ArrayList<String>();
+            for(int view = random.nextInt(20); view > 0; view--) {
+                viewedByUserIds.add(Integer.toString(100000 + random.nextInt(900000)));
+            }
+            ZonedDateTime lastUpdated = ZonedDateTime.ofInstant(Instant.ofEpochMilli(946684800000L + (long) (random.nextDouble() * 800000000000L)), ZoneOffset.UTC);
+            records.add(new InternalRecord(KEYS, new Value[] {Values.value(Integer.toString(100000 + random.nextInt(900000))), Values.value(viewedByUserIds), Values.value(lastUpdated)}));
+        }
+        return records;
+    }
+}
@@ -0,0 +1,17 @@
+package com.neo4j;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks selected on the command line, which takes the usual JMH options, with the GC profiler added so
+ * that every result reports its allocation rate alongside its throughput.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String... args) throws Exception {
+        new Runner(new OptionsBuilder().parent(new CommandLineOptions(args)).addProfiler(GCProfiler.class).build()).run();
+    }
+}
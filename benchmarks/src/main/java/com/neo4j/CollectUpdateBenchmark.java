@@ -0,0 +1,89 @@
+package com.neo4j;
+
+import org.apache.logging.log4j.core.config.Configurator;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the full collect then update path with the shipped collect and update cypher against the dummy data, over a
+ * matrix of batch sizes, thread counts and engines. With the async engine the thread count is used as the maximum number
+ * of transactions in flight, so both engines are compared at the same number of concurrent batches. Besides runs per
+ * second, throughput is reported as the update parameter records processed per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1, time = 30)
+@Measurement(iterations = 3, time = 60)
+@Fork(1)
+public class CollectUpdateBenchmark {
+
+    @Param({"0.05"})
+    public double scale;
+
+    @Param({"1000", "10000"})
+    public int batchSize;
+
+    @Param({"1", "4", "8"})
+    public int threads;
+
+    @Param({"threads", "async"})
+    public String engine;
+
+    private Neo4jHarness neo4jHarness;
+    private BatchUpdater batchUpdater;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class RecordCounters {
+
+        public long parameterRecords;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            parameterRecords = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        neo4jHarness = new Neo4jHarness(scale);
+        Path cypherDirectory = Files.createTempDirectory("batch-update-benchmark");
+        Neo4jHarness.copyCypherFiles(cypherDirectory);
+        BatchUpdater.configure("-uri", neo4jHarness.uri(), "-user", Neo4jHarness.USER, "-pw", Neo4jHarness.PASSWORD, "-cp", cypherDirectory.toString(), "-up", cypherDirectory.toString(), "-rp", cypherDirectory.toString(), "-save", "false", "-ckpt", "false", "-rr", "false", "-pi", "0", "-en", engine, "-etx", String.valueOf(threads));
+        Configurator.setAllLevels("com.neo4j", org.apache.logging.log4j.Level.WARN);
+        batchUpdater = new BatchUpdater(neo4jHarness.uri(), Neo4jHarness.USER, Neo4jHarness.PASSWORD);
+    }
+
+    @Benchmark
+    public long collectAndUpdate(RecordCounters recordCounters) {
+        try (ParameterStore parameterRecords = batchUpdater.collect(batchSize, threads);
+             ParameterStore resultRecords = batchUpdater.update(parameterRecords, batchSize, threads)) {
+            recordCounters.parameterRecords += parameterRecords.size();
+            return resultRecords.size();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        batchUpdater.close();
+        neo4jHarness.close();
+    }
+}
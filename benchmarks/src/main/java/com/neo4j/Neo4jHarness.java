@@ -0,0 +1,76 @@
+package com.neo4j;
+
+import org.neo4j.configuration.GraphDatabaseSettings;
+import org.neo4j.harness.Neo4j;
+import org.neo4j.harness.Neo4jBuilders;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * An in-process Neo4j loaded with a scaled version of the dummy data shipped with the batch updater, so benchmarks
+ * run against a real database without a server to set up. A scale of 1 creates the full 1,000,000 requests and 1,000
+ * users, and each user views about 10 requests at any scale.
+ */
+class Neo4jHarness implements AutoCloseable {
+
+    static final String USER = "neo4j";
+    static final String PASSWORD = "password";
+    private static final List<String> CYPHER_FILE_NAMES = List.of("collect1.cypher", "collect2.cypher", "update1.cypher");
+
+    private final Neo4j neo4j;
+
+    Neo4jHarness(double scale) {
+        neo4j = Neo4jBuilders.newInProcessBuilder().withDisabledServer().withConfig(GraphDatabaseSettings.auth_enabled, false).build();
+        long numberOfRequests = Math.max(100, Math.round(1_000_000 * scale));
+        long numberOfUsers = Math.max(10, Math.round(1_000 * scale));
+        // The update cypher matches requests by id, which a production database would have an index for.
+        neo4j.defaultDatabaseService().executeTransactionally("CREATE INDEX request_id IF NOT EXISTS FOR (r:Request) ON (r.requestId)");
+        for(String statement : readResource("create_dummy_data.cypher").split("\\n\\s*\\n")) {
+            if(statement.isBlank()) continue;
+            neo4j.defaultDatabaseService().executeTransactionally(statement
+                .replace("range(1,1000000)", "range(1," + numberOfRequests + ")")
+                .replace("range(1,1000)", "range(1," + numberOfUsers + ")")
+                .replace("10.0/1000000.0", "10.0/" + numberOfRequests + ".0"));
+        }
+    }
+
+    String uri() {
+        return neo4j.boltURI().toString();
+    }
+
+    /**
+     * Copies the shipped collection and update cypher files into the given directory, for use as the collect and
+     * update paths.
+     */
+    static void copyCypherFiles(Path directory) {
+        try {
+            for(String fileName : CYPHER_FILE_NAMES) {
+                Files.writeString(directory.resolve(fileName), readResource(fileName), StandardCharsets.UTF_8);
+            }
+        }
+        catch (IOException ioException) {
+            throw new UncheckedIOException(ioException);
+        }
+    }
+
+    static String readResource(String fileName) {
+        try (InputStream input = Neo4jHarness.class.getResourceAsStream("/" + fileName)) {
+            if(input == null) throw new IOException("Missing benchmark resource " + fileName);
+            return new String(input.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        catch (IOException ioException) {
+            throw new UncheckedIOException(ioException);
+        }
+    }
+
+    @Override
+    public void close() {
+        neo4j.close();
+    }
+}
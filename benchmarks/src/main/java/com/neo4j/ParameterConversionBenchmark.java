@@ -0,0 +1,83 @@
+package com.neo4j;
+
+import org.apache.logging.log4j.core.config.Configurator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures turning parameter records into the parameter maps of each batch, both from the parameter store used
+ * between steps and from driver records with {@code asMap} as pipelined steps do, in records per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@OperationsPerInvocation(ParameterConversionBenchmark.NUMBER_OF_RECORDS)
+public class ParameterConversionBenchmark {
+
+    static final int NUMBER_OF_RECORDS = 100000;
+
+    @Param({"1000", "10000"})
+    public int batchSize;
+
+    private List<org.neo4j.driver.Record> records;
+    private ParameterStore.SegmentAllocator segmentAllocator;
+    private ParameterStore parameterStore;
+    private int[] shardedRowOrder;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Configurator.setAllLevels("com.neo4j", org.apache.logging.log4j.Level.WARN);
+        records = BenchmarkRecords.create(NUMBER_OF_RECORDS);
+        segmentAllocator = new ParameterStore.SegmentAllocator(1L << 30, Paths.get(System.getProperty("java.io.tmpdir")));
+        parameterStore = new ParameterStore(segmentAllocator);
+        parameterStore.append(records);
+        shardedRowOrder = ShardPlan.build(parameterStore, "requestId", 4).rowOrder();
+    }
+
+    @Benchmark
+    public void parameterStoreRows(Blackhole blackhole) {
+        for(int fromRow = 0; fromRow < NUMBER_OF_RECORDS; fromRow += batchSize) {
+            blackhole.consume(parameterStore.rows(fromRow, Math.min(fromRow + batchSize, NUMBER_OF_RECORDS)));
+        }
+    }
+
+    @Benchmark
+    public void shardedParameterStoreRows(Blackhole blackhole) {
+        for(int fromPosition = 0; fromPosition < NUMBER_OF_RECORDS; fromPosition += batchSize) {
+            blackhole.consume(parameterStore.rows(shardedRowOrder, fromPosition, Math.min(fromPosition + batchSize, NUMBER_OF_RECORDS)));
+        }
+    }
+
+    @Benchmark
+    public void recordAsMap(Blackhole blackhole) {
+        for(int fromRow = 0; fromRow < NUMBER_OF_RECORDS; fromRow += batchSize) {
+            blackhole.consume(records.subList(fromRow, Math.min(fromRow + batchSize, NUMBER_OF_RECORDS)).stream().map(record -> record.asMap()).toList());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        parameterStore.close();
+        segmentAllocator.close();
+    }
+}
@@ -0,0 +1,90 @@
+package com.neo4j;
+
+import org.apache.logging.log4j.core.config.Configurator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures writing a step's results file in each format, with and without compression, both from batches of driver
+ * records as they complete and from a parameter store, in records per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@OperationsPerInvocation(ResultSinkBenchmark.NUMBER_OF_RECORDS)
+public class ResultSinkBenchmark {
+
+    static final int NUMBER_OF_RECORDS = 100000;
+    private static final int BATCH_SIZE = 1000;
+
+    @Param({"csv", "ndjson"})
+    public String format;
+
+    @Param({"false", "true"})
+    public boolean compress;
+
+    private List<org.neo4j.driver.Record> records;
+    private ParameterStore.SegmentAllocator segmentAllocator;
+    private ParameterStore parameterStore;
+    private Path resultsDirectory;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Configurator.setAllLevels("com.neo4j", org.apache.logging.log4j.Level.WARN);
+        records = BenchmarkRecords.create(NUMBER_OF_RECORDS);
+        segmentAllocator = new ParameterStore.SegmentAllocator(1L << 30, Paths.get(System.getProperty("java.io.tmpdir")));
+        parameterStore = new ParameterStore(segmentAllocator);
+        parameterStore.append(records);
+        resultsDirectory = Files.createTempDirectory("batch-update-benchmark");
+    }
+
+    @Benchmark
+    public void writeRecordBatches() {
+        try (ResultSink resultSink = new ResultSink(resultsDirectory.resolve("batches" + ResultSink.fileExtension(format, compress)), format, compress)) {
+            for(int fromRow = 0; fromRow < NUMBER_OF_RECORDS; fromRow += BATCH_SIZE) {
+                resultSink.write(records.subList(fromRow, Math.min(fromRow + BATCH_SIZE, NUMBER_OF_RECORDS)));
+            }
+        }
+    }
+
+    @Benchmark
+    public void writeParameterStore() {
+        try (ResultSink resultSink = new ResultSink(resultsDirectory.resolve("store" + ResultSink.fileExtension(format, compress)), format, compress)) {
+            resultSink.write(parameterStore);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        parameterStore.close();
+        segmentAllocator.close();
+        try (var files = Files.list(resultsDirectory)) {
+            for(Path file : files.toList()) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(resultsDirectory);
+    }
+}
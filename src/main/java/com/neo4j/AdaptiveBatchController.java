@@ -0,0 +1,93 @@
+package com.neo4j;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Chooses the batch size and the number of batches in flight for an update step using additive increase and
+ * multiplicative decrease. After a full round of batches commits first time within the target latency, both are
+ * increased by one step. A batch that needed retries halves both, and a batch that committed but took longer than
+ * the target latency halves the batch size. Only batches dispatched since the last decrease can trigger another one,
+ * so a burst of slow batches that were already in flight is treated as a single signal.
+ */
+class AdaptiveBatchController {
+
+    private static final Logger logger = LogManager.getLogger(AdaptiveBatchController.class);
+
+    private final int minimumBatchSize;
+    private final int maximumBatchSize;
+    private final int batchSizeStep;
+    private final int minimumConcurrency;
+    private final int maximumConcurrency;
+    private final long targetLatencyNanoseconds;
+    private int batchSize;
+    private int concurrency;
+    private int inFlightBatches;
+    private int epoch;
+    private int successesSinceChange;
+    private int adjustments;
+
+    AdaptiveBatchController(int initialBatchSize, int minimumBatchSize, int maximumBatchSize, int initialConcurrency, int minimumConcurrency, int maximumConcurrency, long targetLatencyMilliseconds) {
+        this.minimumBatchSize = Math.max(1, minimumBatchSize);
+        this.maximumBatchSize = Math.max(this.minimumBatchSize, maximumBatchSize);
+        this.batchSizeStep = Math.max(1, (this.maximumBatchSize - this.minimumBatchSize) / 20);
+        this.minimumConcurrency = Math.max(1, minimumConcurrency);
+        this.maximumConcurrency = Math.max(this.minimumConcurrency, maximumConcurrency);
+        this.targetLatencyNanoseconds = targetLatencyMilliseconds * 1_000_000L;
+        this.batchSize = Math.min(Math.max(initialBatchSize, this.minimumBatchSize), this.maximumBatchSize);
+        this.concurrency = Math.min(Math.max(initialConcurrency, this.minimumConcurrency), this.maximumConcurrency);
+        logger.info("Adaptive batching will start with batches of {} and {} batch{} in flight, adjusting between batches of {} to {} and {} to {} batch{} in flight with a target commit latency of {} ms", String.format("%,d", batchSize), concurrency, concurrency == 1 ? "" : "es", String.format("%,d", this.minimumBatchSize), String.format("%,d", this.maximumBatchSize), this.minimumConcurrency, this.maximumConcurrency, this.maximumConcurrency == 1 ? "" : "es", targetLatencyMilliseconds);
+    }
+
+    int maximumConcurrency() {
+        return maximumConcurrency;
+    }
+
+    synchronized int batchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Waits until fewer batches than the current concurrency are in flight, counts a new batch as in flight and
+     * returns the epoch the batch was dispatched in.
+     */
+    synchronized int acquire() throws InterruptedException {
+        while(inFlightBatches >= concurrency) {
+            wait();
+        }
+        inFlightBatches++;
+        return epoch;
+    }
+
+    synchronized void release() {
+        inFlightBatches--;
+        notifyAll();
+    }
+
+    synchronized void completed(int dispatchEpoch, int attempts, long latencyNanoseconds) {
+        if(attempts > 1 || latencyNanoseconds > targetLatencyNanoseconds) {
+            if(dispatchEpoch < epoch) return;
+            int newBatchSize = Math.max(minimumBatchSize, batchSize / 2);
+            int newConcurrency = attempts > 1 ? Math.max(minimumConcurrency, concurrency / 2) : concurrency;
+            adjust(newBatchSize, newConcurrency, attempts > 1 ? "required " + attempts + " attempts" : "took " + latencyNanoseconds / 1_000_000 + " ms");
+            epoch++;
+        }
+        else if(++successesSinceChange >= concurrency) {
+            adjust(Math.min(maximumBatchSize, batchSize + batchSizeStep), Math.min(maximumConcurrency, concurrency + 1), "committed within " + targetLatencyNanoseconds / 1_000_000 + " ms");
+        }
+    }
+
+    private void adjust(int newBatchSize, int newConcurrency, String reason) {
+        successesSinceChange = 0;
+        if(newBatchSize == batchSize && newConcurrency == concurrency) return;
+        adjustments++;
+        logger.info("Adaptive batching changed batch size from {} to {} and batches in flight from {} to {} because a batch {}", String.format("%,d", batchSize), String.format("%,d", newBatchSize), concurrency, newConcurrency, reason);
+        batchSize = newBatchSize;
+        concurrency = newConcurrency;
+        notifyAll();
+    }
+
+    synchronized void logSummary() {
+        logger.info("Adaptive batching settled on batches of {} with {} batch{} in flight after {} adjustment{}", String.format("%,d", batchSize), concurrency, concurrency == 1 ? "" : "es", adjustments, adjustments == 1 ? "" : "s");
+    }
+}
@@ -0,0 +1,121 @@
+package com.neo4j;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.neo4j.driver.AccessMode;
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.SessionConfig;
+import org.neo4j.driver.async.AsyncSession;
+import org.neo4j.driver.async.AsyncTransactionCallback;
+import org.neo4j.driver.summary.SummaryCounters;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Runs parameter batches through the driver's async session API for the whole run. Batches do not hold a thread
+ * while they wait on the database, so the number of transactions in flight is set separately from the number of
+ * threads. Each transaction in flight holds one of a pool of sessions, which are reused by later batches, and the
+ * results of committed batches are handed to one shared pool of threads for processing.
+ */
+class AsyncBatchExecutor implements BatchExecutor {
+
+    private static final Logger logger = LogManager.getLogger(AsyncBatchExecutor.class);
+
+    private final Driver driver;
+    private final String database;
+    private final Map<String,Object> runParameters;
+    private final int maximumTransactionsInFlight;
+    private final ExecutorService executorService;
+    private final BlockingQueue<AsyncSession> idleSessions = new LinkedBlockingQueue<AsyncSession>();
+    private final List<AsyncSession> sessions = new ArrayList<AsyncSession>();
+
+    AsyncBatchExecutor(Driver driver, String database, Map<String,Object> runParameters, int maximumTransactionsInFlight, int numberOfThreads) {
+        this.driver = driver;
+        this.database = database;
+        this.runParameters = runParameters;
+        this.maximumTransactionsInFlight = Math.max(1, maximumTransactionsInFlight);
+        this.executorService = Executors.newFixedThreadPool(Math.max(1, numberOfThreads));
+        logger.info("Batches will be run by the async engine with up to {} transaction{} in flight and {} thread{} processing their results", this.maximumTransactionsInFlight, this.maximumTransactionsInFlight == 1 ? "" : "s", Math.max(1, numberOfThreads), numberOfThreads == 1 ? "" : "s");
+    }
+
+    int maximumTransactionsInFlight() {
+        return maximumTransactionsInFlight;
+    }
+
+    /**
+     * Waits for an idle session, opening a new one while fewer than the maximum transactions in flight are open.
+     */
+    private AsyncSession acquireSession() {
+        AsyncSession session = idleSessions.poll();
+        if(session != null) return session;
+        synchronized(sessions) {
+            if(sessions.size() < maximumTransactionsInFlight) {
+                session = driver.session(AsyncSession.class, SessionConfig.builder().withDatabase(database).build());
+                sessions.add(session);
+                return session;
+            }
+        }
+        try {
+            return idleSessions.take();
+        }
+        catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting to dispatch a batch", interruptedException);
+        }
+    }
+
+    @Override
+    public CompletableFuture<BatchUpdater.BatchResult> submit(String cypherQuery, int numberOfParameterRecords, Supplier<List<Map<String,Object>>> parameterRecordBatch, AccessMode accessMode) {
+        AsyncSession session = acquireSession();
+        logger.info("Processing batch of {} parameter record{}", String.format("%,d", numberOfParameterRecords), numberOfParameterRecords == 1 ? "" : "s");
+        AtomicInteger attempts = new AtomicInteger();
+        AtomicReference<SummaryCounters> counters = new AtomicReference<SummaryCounters>();
+        long startTime = System.nanoTime();
+        Map<String,Object> queryParameters = new HashMap<>(runParameters);
+        queryParameters.put("batch", parameterRecordBatch.get());
+        AsyncTransactionCallback<CompletionStage<List<org.neo4j.driver.Record>>> transactionWork = tx -> {
+            attempts.incrementAndGet();
+            return tx.runAsync(cypherQuery, queryParameters).thenCompose(cursor -> cursor.listAsync().thenCompose(records -> cursor.consumeAsync().thenApply(summary -> {
+                counters.set(summary.counters());
+                return records;
+            })));
+        };
+        CompletionStage<List<org.neo4j.driver.Record>> batchResultsStage = accessMode == AccessMode.WRITE ? session.executeWriteAsync(transactionWork) : session.executeReadAsync(transactionWork);
+        return batchResultsStage
+        .toCompletableFuture()
+        .whenComplete((ignored, throwable) -> idleSessions.add(session))
+        .thenApplyAsync(batchResults -> {
+            int batchResultsSize = batchResults.size();
+            logger.info("Retrieved {} result record{} from batch", String.format("%,d", batchResultsSize), batchResultsSize == 1 ? "" : "s");
+            return new BatchUpdater.BatchResult(batchResults, attempts.get(), System.nanoTime() - startTime, counters.get());
+        }, executorService);
+    }
+
+    @Override
+    public void close() {
+        synchronized(sessions) {
+            for(AsyncSession session : sessions) {
+                try {
+                    session.closeAsync().toCompletableFuture().join();
+                }
+                catch (RuntimeException exception) {
+                    logger.error(exception.getMessage());
+                }
+            }
+            sessions.clear();
+        }
+        executorService.shutdownNow();
+    }
+}
@@ -0,0 +1,23 @@
+package com.neo4j;
+
+import org.neo4j.driver.AccessMode;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Runs the parameter batches of one step with the execution engine chosen for the run. Submitting a batch may wait
+ * until the engine has capacity for it, and the returned future completes with the batch result once it commits.
+ * The parameter maps of a batch are only built once the engine is about to run it, so batches waiting for capacity
+ * do not hold them.
+ */
+interface BatchExecutor extends AutoCloseable {
+
+    CompletableFuture<BatchUpdater.BatchResult> submit(String cypherQuery, int numberOfParameterRecords, Supplier<List<Map<String,Object>>> parameterRecordBatch, AccessMode accessMode);
+
+    @Override
+    default void close() {
+    }
+}
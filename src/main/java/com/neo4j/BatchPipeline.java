@@ -0,0 +1,246 @@
+package com.neo4j;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.neo4j.driver.AccessMode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Runs every collect and update step at the same time, each step feeding its result records to the next step
+ * through a bounded queue. A step blocks when the queue to the next step is full, so the number of records held in
+ * memory depends on the batch sizes and queue size rather than on the total number of records.
+ */
+class BatchPipeline {
+
+    private static final Logger logger = LogManager.getLogger(BatchPipeline.class);
+    private static final List<org.neo4j.driver.Record> END_OF_STREAM = new ArrayList<org.neo4j.driver.Record>(0);
+    private static final long POLL_MILLISECONDS = 100;
+
+    private record Step(String name, String cypherQuery, boolean write, int batchSize, int numberOfWorkerThreads) {}
+
+    private final BatchUpdater batchUpdater;
+    private final int queueSize;
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    BatchPipeline(BatchUpdater batchUpdater, int queueSize) {
+        this.batchUpdater = batchUpdater;
+        this.queueSize = Math.max(1, queueSize);
+    }
+
+    long run(List<String> collectionCypherQueries, List<Map<String,Object>> sourcePartitions, int collectBatchSize, int numberOfCollectWorkerThreads, List<String> updateCypherQueries, int updateBatchSize, int numberOfUpdateWorkerThreads) {
+        List<Step> steps = new ArrayList<Step>();
+        for(int stepNumber = 1; stepNumber <= collectionCypherQueries.size(); stepNumber++) {
+            steps.add(new Step("collect_" + stepNumber, collectionCypherQueries.get(stepNumber-1), false, collectBatchSize, numberOfCollectWorkerThreads));
+        }
+        for(int stepNumber = 1; stepNumber <= updateCypherQueries.size(); stepNumber++) {
+            steps.add(new Step("update_" + stepNumber, updateCypherQueries.get(stepNumber-1), true, updateBatchSize, numberOfUpdateWorkerThreads));
+        }
+        ExecutorService stageExecutorService = Executors.newFixedThreadPool(steps.size());
+        List<Future<?>> stageFutures = new ArrayList<Future<?>>();
+        BlockingQueue<List<org.neo4j.driver.Record>> stepInput = new ArrayBlockingQueue<List<org.neo4j.driver.Record>>(queueSize);
+        final BlockingQueue<List<org.neo4j.driver.Record>> sourceOutput = stepInput;
+        int sourceChunkSize = steps.size() > 1 ? steps.get(1).batchSize() : collectBatchSize;
+        stageFutures.add(stageExecutorService.submit(() -> runSourceStep(steps.get(0), sourcePartitions, sourceChunkSize, sourceOutput)));
+        for(Step step : steps.subList(1, steps.size())) {
+            final BlockingQueue<List<org.neo4j.driver.Record>> batchInput = stepInput;
+            final BlockingQueue<List<org.neo4j.driver.Record>> batchOutput = new ArrayBlockingQueue<List<org.neo4j.driver.Record>>(queueSize);
+            stageFutures.add(stageExecutorService.submit(() -> runBatchStep(step, batchInput, batchOutput)));
+            stepInput = batchOutput;
+        }
+        long numberOfResultRecords = 0;
+        try {
+            List<org.neo4j.driver.Record> chunk;
+            IncrementalWatermark incrementalWatermark = batchUpdater.incrementalWatermark();
+            while((chunk = take(stepInput)) != null && chunk != END_OF_STREAM) {
+                numberOfResultRecords += chunk.size();
+                if(incrementalWatermark != null) {
+                    try {
+                        incrementalWatermark.observe(chunk);
+                    }
+                    catch (RuntimeException exception) {
+                        fail(exception);
+                    }
+                }
+            }
+        }
+        catch (Throwable throwable) {
+            // Stages only stop early once a failure is recorded, so it must be recorded before waiting for them.
+            fail(throwable);
+            throw throwable;
+        }
+        finally {
+            for(Future<?> stageFuture : stageFutures) {
+                try {
+                    stageFuture.get();
+                }
+                catch (ExecutionException executionException) {
+                    fail(executionException.getCause());
+                }
+                catch (InterruptedException interruptedException) {
+                    Thread.currentThread().interrupt();
+                    fail(interruptedException);
+                }
+            }
+            stageExecutorService.shutdownNow();
+        }
+        if(failure.get() != null) {
+            throw new RuntimeException("Pipelined processing was aborted", failure.get());
+        }
+        logger.info("Retrieved {} result record{} from the final pipelined step", String.format("%,d", numberOfResultRecords), numberOfResultRecords == 1 ? "" : "s");
+        return numberOfResultRecords;
+    }
+
+    private void runSourceStep(Step step, List<Map<String,Object>> partitions, int chunkSize, BlockingQueue<List<org.neo4j.driver.Record>> output) {
+        AtomicLong numberOfResultRecords = new AtomicLong();
+        RunMetrics.StepMetrics stepMetrics = batchUpdater.runMetrics().startStep(step.name(), -1);
+        try (ResultSink resultSink = batchUpdater.openResultSink(step.name())) {
+            Consumer<List<org.neo4j.driver.Record>> chunkConsumer = chunk -> {
+                if(failure.get() != null) throw new IllegalStateException("Pipelined processing was aborted");
+                resultSink.write(chunk);
+                stepMetrics.recordsStreamed(chunk.size());
+                numberOfResultRecords.addAndGet(chunk.size());
+                put(output, chunk);
+            };
+            if(partitions == null) {
+                logger.info("Pipelined step {} will stream the following read cypher in chunks of {}:\n{}", step.name(), String.format("%,d", chunkSize), step.cypherQuery());
+                batchUpdater.streamReadCypher(step.cypherQuery(), Map.of(), chunkSize, chunkConsumer);
+            }
+            else {
+                logger.info("Pipelined step {} will stream the following read cypher as {} partition{} in chunks of {} using {} worker thread{}:\n{}", step.name(), partitions.size(), partitions.size() == 1 ? "" : "s", String.format("%,d", chunkSize), step.numberOfWorkerThreads(), step.numberOfWorkerThreads() == 1 ? "" : "s", step.cypherQuery());
+                batchUpdater.streamPartitionedReadCypher(step.cypherQuery(), partitions, chunkSize, step.numberOfWorkerThreads(), chunkConsumer);
+            }
+            put(output, END_OF_STREAM);
+        }
+        catch (Throwable throwable) {
+            fail(throwable);
+            return;
+        }
+        logger.info("Pipelined step {} streamed {} result record{}", step.name(), String.format("%,d", numberOfResultRecords.get()), numberOfResultRecords.get() == 1 ? "" : "s");
+        stepMetrics.completed();
+    }
+
+    private void runBatchStep(Step step, BlockingQueue<List<org.neo4j.driver.Record>> input, BlockingQueue<List<org.neo4j.driver.Record>> output) {
+        logger.info("Pipelined step {} will process the following {} cypher in batches of {} {}:\n{}", step.name(), step.write() ? "write" : "read", String.format("%,d", step.batchSize()), batchUpdater.batchWorkersDescription(step.numberOfWorkerThreads()), step.cypherQuery());
+        int maximumBatchesInFlight = batchUpdater.maximumBatchesInFlight(step.numberOfWorkerThreads());
+        Semaphore inFlightBatches = new Semaphore(maximumBatchesInFlight);
+        // Results are handed on by one thread per step, so a full output queue never holds up the engine's threads.
+        ExecutorService resultExecutorService = Executors.newSingleThreadExecutor();
+        AtomicLong numberOfParameterRecords = new AtomicLong();
+        RunMetrics.StepMetrics stepMetrics = batchUpdater.runMetrics().startStep(step.name(), -1);
+        AtomicLong numberOfResultRecords = new AtomicLong();
+        try (BatchExecutor batchExecutor = batchUpdater.openBatchExecutor(step.numberOfWorkerThreads(), stepMetrics); ResultSink resultSink = batchUpdater.openResultSink(step.name())) {
+            List<org.neo4j.driver.Record> pendingParameterRecords = new ArrayList<org.neo4j.driver.Record>();
+            List<org.neo4j.driver.Record> chunk;
+            while((chunk = take(input)) != null && chunk != END_OF_STREAM) {
+                pendingParameterRecords.addAll(chunk);
+                while(pendingParameterRecords.size() >= step.batchSize()) {
+                    List<org.neo4j.driver.Record> batchRecords = pendingParameterRecords.subList(0, step.batchSize());
+                    submitBatch(step, new ArrayList<org.neo4j.driver.Record>(batchRecords), batchExecutor, resultExecutorService, inFlightBatches, resultSink, output, numberOfResultRecords);
+                    numberOfParameterRecords.addAndGet(batchRecords.size());
+                    batchRecords.clear();
+                }
+            }
+            if(!pendingParameterRecords.isEmpty()) {
+                submitBatch(step, pendingParameterRecords, batchExecutor, resultExecutorService, inFlightBatches, resultSink, output, numberOfResultRecords);
+                numberOfParameterRecords.addAndGet(pendingParameterRecords.size());
+            }
+            if(acquire(inFlightBatches, maximumBatchesInFlight)) put(output, END_OF_STREAM);
+        }
+        catch (Throwable throwable) {
+            fail(throwable);
+        }
+        finally {
+            resultExecutorService.shutdownNow();
+        }
+        if(failure.get() == null) {
+            logger.info("Pipelined step {} processed {} parameter record{} into {} result record{}", step.name(), String.format("%,d", numberOfParameterRecords.get()), numberOfParameterRecords.get() == 1 ? "" : "s", String.format("%,d", numberOfResultRecords.get()), numberOfResultRecords.get() == 1 ? "" : "s");
+            stepMetrics.completed();
+        }
+    }
+
+    private void submitBatch(Step step, List<org.neo4j.driver.Record> parameterRecordBatch, BatchExecutor batchExecutor, ExecutorService resultExecutorService, Semaphore inFlightBatches, ResultSink resultSink, BlockingQueue<List<org.neo4j.driver.Record>> output, AtomicLong numberOfResultRecords) {
+        if(!acquire(inFlightBatches, 1)) throw new IllegalStateException("Pipelined processing was aborted");
+        try {
+            batchExecutor.submit(step.cypherQuery(), parameterRecordBatch.size(), () -> parameterRecordBatch.stream().map(record -> record.asMap()).toList(), step.write() ? AccessMode.WRITE : AccessMode.READ).whenCompleteAsync((batchResult, throwable) -> {
+                try {
+                    if(throwable != null) throw throwable instanceof CompletionException ? throwable.getCause() : throwable;
+                    if(failure.get() != null) return;
+                    List<org.neo4j.driver.Record> batchResults = batchResult.records();
+                    resultSink.write(batchResults);
+                    numberOfResultRecords.addAndGet(batchResults.size());
+                    if(!batchResults.isEmpty()) put(output, batchResults);
+                }
+                catch (Throwable batchThrowable) {
+                    fail(batchThrowable);
+                }
+                finally {
+                    inFlightBatches.release();
+                }
+            }, resultExecutorService);
+        }
+        catch (RuntimeException exception) {
+            inFlightBatches.release();
+            throw exception;
+        }
+    }
+
+    private void fail(Throwable throwable) {
+        if(failure.compareAndSet(null, throwable)) {
+            logger.error("Pipelined processing will be aborted due to the following error.\n{}\n{}", throwable.getClass().getName(), throwable.getMessage());
+        }
+    }
+
+    private boolean acquire(Semaphore semaphore, int permits) {
+        try {
+            while(failure.get() == null) {
+                if(semaphore.tryAcquire(permits, POLL_MILLISECONDS, TimeUnit.MILLISECONDS)) return true;
+            }
+        }
+        catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+            fail(interruptedException);
+        }
+        return false;
+    }
+
+    private void put(BlockingQueue<List<org.neo4j.driver.Record>> queue, List<org.neo4j.driver.Record> chunk) {
+        try {
+            while(failure.get() == null) {
+                if(queue.offer(chunk, POLL_MILLISECONDS, TimeUnit.MILLISECONDS)) return;
+            }
+        }
+        catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+            fail(interruptedException);
+        }
+    }
+
+    private List<org.neo4j.driver.Record> take(BlockingQueue<List<org.neo4j.driver.Record>> queue) {
+        try {
+            while(failure.get() == null) {
+                List<org.neo4j.driver.Record> chunk = queue.poll(POLL_MILLISECONDS, TimeUnit.MILLISECONDS);
+                if(chunk != null) return chunk;
+            }
+        }
+        catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+            fail(interruptedException);
+        }
+        return null;
+    }
+}
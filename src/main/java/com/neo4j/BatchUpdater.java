@@ -6,31 +6,42 @@ import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
-import org.apache.commons.collections4.ListUtils;
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVPrinter;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.core.config.Configurator;
+import org.neo4j.driver.AccessMode;
 import org.neo4j.driver.AuthTokens;
 import org.neo4j.driver.Driver;
 import org.neo4j.driver.GraphDatabase;
 import org.neo4j.driver.SessionConfig;
+import org.neo4j.driver.exceptions.RetryableException;
+import org.neo4j.driver.summary.SummaryCounters;
 
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
 
 public class BatchUpdater implements AutoCloseable {
 
@@ -42,87 +53,453 @@ public class BatchUpdater implements AutoCloseable {
     private static int COLLECT_BATCH_SIZE = 10000;
     private static int COLLECT_THREAD_COUNT = 4;
     private static String COLLECT_FILES_PATH = ".";
+    private static int COLLECT_PARTITIONS = 0;
+    private static String COLLECT_PARTITION_BOUNDS_CYPHER = "MATCH (n) RETURN min(id(n)) AS minimum, max(id(n)) AS maximum";
     private static int UPDATE_BATCH_SIZE = 1000;
     private static int UPDATE_THREAD_COUNT = 4;
     private static String UPDATE_FILES_PATH = ".";
+    private static String UPDATE_SHARD_KEY = null;
+    private static boolean UPDATE_ADAPTIVE = false;
+    private static int UPDATE_BATCH_SIZE_MIN = 100;
+    private static int UPDATE_BATCH_SIZE_MAX = 10000;
+    private static int UPDATE_THREAD_COUNT_MIN = 1;
+    private static int UPDATE_THREAD_COUNT_MAX = 16;
+    private static long UPDATE_TARGET_LATENCY = 2000;
     private static String RESULT_FILES_PATH = ".";
     private static boolean SAVE_RESULTS = true;
+    private static String RESULT_FILES_FORMAT = "csv";
+    private static boolean RESULT_FILES_COMPRESS = false;
+    private static boolean RUN_REPORT = true;
+    private static long PROGRESS_INTERVAL = 10;
+    private static int STORE_HEAP_SIZE = 256;
+    private static String STORE_SPILL_PATH = System.getProperty("java.io.tmpdir");
+    private static boolean CHECKPOINT = false;
+    private static boolean RESUME = false;
+    private static boolean PIPELINE = false;
+    private static int PIPELINE_QUEUE_SIZE = 4;
+    private static String ENGINE = "threads";
+    private static int ENGINE_TRANSACTIONS = 64;
+    private static int ENGINE_THREADS = Runtime.getRuntime().availableProcessors();
+    private static boolean PREFLIGHT = false;
+    private static int PREFLIGHT_SAMPLE_SIZE = 100;
+    private static String INCREMENTAL_COLUMN = null;
 
     private static final Logger logger = LogManager.getLogger(BatchUpdater.class);
+    private static final Pattern PARTITION_ON_ID = Pattern.compile("\\$partition(Start|End)\\s*[<>]=?\\s*id\\s*\\(|\\bid\\s*\\(\\s*\\w+\\s*\\)\\s*[<>]=?\\s*\\$partition(Start|End)\\b");
+    private static final String INCREMENTAL_STATE_FILE_NAME = "incremental_state.properties";
+
+    record BatchResult(List<org.neo4j.driver.Record> records, int attempts, long latencyNanoseconds, SummaryCounters counters) {}
+
     private final Driver driver;
+    private final ParameterStore.SegmentAllocator parameterStoreAllocator;
+    private final AsyncBatchExecutor asyncBatchExecutor;
+    private final RunMetrics runMetrics;
+    private final IncrementalWatermark incrementalWatermark;
+    private final Map<String,Object> runParameters;
+    private CheckpointJournal checkpointJournal;
+    private CheckpointJournal.Step lastCheckpointStep = CheckpointJournal.START;
     
     public BatchUpdater(String uri, String user, String password) {
         driver = GraphDatabase.driver(uri, AuthTokens.basic(user, password));
         logger.info("Verifying connectivity to Neo4j at {}", uri);
         driver.verifyConnectivity();
+        parameterStoreAllocator = new ParameterStore.SegmentAllocator(STORE_HEAP_SIZE * 1024L * 1024L, Paths.get(STORE_SPILL_PATH));
+        runMetrics = new RunMetrics(PROGRESS_INTERVAL);
+        incrementalWatermark = INCREMENTAL_COLUMN == null ? null : new IncrementalWatermark(resultsFilePath(INCREMENTAL_STATE_FILE_NAME), INCREMENTAL_COLUMN);
+        Map<String,Object> parameters = new HashMap<>();
+        if(incrementalWatermark != null) parameters.put("since", incrementalWatermark.since());
+        runParameters = Collections.unmodifiableMap(parameters);
+        asyncBatchExecutor = ENGINE.equals("async") ? new AsyncBatchExecutor(driver, NEO4J_DATABASE, runParameters, ENGINE_TRANSACTIONS, ENGINE_THREADS) : null;
     }
 
     @Override
     public void close() throws RuntimeException {
+        runMetrics.close();
+        if(RUN_REPORT && !PREFLIGHT) runMetrics.writeReport(resultsFilePath("run_report_" + DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss").format(LocalDateTime.now()) + ".json"), runSettings());
+        if(asyncBatchExecutor != null) asyncBatchExecutor.close();
         driver.close();
+        parameterStoreAllocator.close();
+        if(checkpointJournal != null) {
+            try {
+                checkpointJournal.close();
+            }
+            catch (IOException ioException) {
+                logger.error(ioException.getMessage());
+            }
+        }
     }
 
-    void writeResultsFile(List<org.neo4j.driver.Record> records, String fileName) {
-        try (CSVPrinter csvPrinter = new CSVPrinter(new FileWriter(Paths.get(RESULT_FILES_PATH, fileName).toFile()), CSVFormat.DEFAULT)) {
-            csvPrinter.printRecord(records.get(0).keys());
-            records.forEach(record -> {
+    RunMetrics runMetrics() {
+        return runMetrics;
+    }
+
+    IncrementalWatermark incrementalWatermark() {
+        return incrementalWatermark;
+    }
+
+    static Map<String,Object> runSettings() {
+        Map<String,Object> settings = new LinkedHashMap<String,Object>();
+        settings.put("uri", NEO4J_URI);
+        settings.put("database", NEO4J_DATABASE);
+        settings.put("collectBatchSize", COLLECT_BATCH_SIZE);
+        settings.put("collectThreadCount", COLLECT_THREAD_COUNT);
+        settings.put("collectPartitions", COLLECT_PARTITIONS);
+        settings.put("updateBatchSize", UPDATE_BATCH_SIZE);
+        settings.put("updateThreadCount", UPDATE_THREAD_COUNT);
+        settings.put("updateShardKey", UPDATE_SHARD_KEY);
+        settings.put("updateAdaptive", UPDATE_ADAPTIVE);
+        settings.put("engine", ENGINE);
+        if(ENGINE.equals("async")) {
+            settings.put("engineTransactions", ENGINE_TRANSACTIONS);
+            settings.put("engineThreads", ENGINE_THREADS);
+        }
+        settings.put("pipeline", PIPELINE);
+        settings.put("resume", RESUME);
+        settings.put("resultsFormat", RESULT_FILES_FORMAT);
+        settings.put("incrementalColumn", INCREMENTAL_COLUMN);
+        return settings;
+    }
+
+    Path resultsFilePath(String fileName) {
+        return Paths.get(RESULT_FILES_PATH, fileName);
+    }
+
+    /**
+     * Opens the sink for the results of a step, which discards them unless results are saved.
+     */
+    ResultSink openResultSink(String stepName) {
+        return new ResultSink(SAVE_RESULTS ? resultsFilePath(stepName + ResultSink.fileExtension(RESULT_FILES_FORMAT, RESULT_FILES_COMPRESS)) : null, RESULT_FILES_FORMAT, RESULT_FILES_COMPRESS);
+    }
+
+    /**
+     * Streams the results of read cypher to {@code chunkConsumer} in chunks from a managed transaction, so the driver
+     * retries transient failures such as a leader switch. Chunks cannot be taken back once consumed, so a failure after
+     * the first chunk aborts the read rather than retrying it and handing over the same records twice.
+     */
+    void streamReadCypher(String cypherQuery, Map<String,Object> queryParameters, int chunkSize, Consumer<List<org.neo4j.driver.Record>> chunkConsumer) {
+        Map<String,Object> parameters = new HashMap<>(runParameters);
+        parameters.putAll(queryParameters);
+        AtomicInteger chunksConsumed = new AtomicInteger();
+        try (var session = driver.session(SessionConfig.builder().withDatabase(NEO4J_DATABASE).withDefaultAccessMode(AccessMode.READ).build())) {
+            session.executeRead(tx -> {
                 try {
-                    csvPrinter.printRecord(record.values().stream().map(value -> value.toString().replace("\"", "")));
+                    var result = tx.run(cypherQuery, parameters);
+                    List<org.neo4j.driver.Record> chunk = new ArrayList<org.neo4j.driver.Record>(chunkSize);
+                    while(result.hasNext()) {
+                        chunk.add(result.next());
+                        if(chunk.size() >= chunkSize) {
+                            chunkConsumer.accept(chunk);
+                            chunksConsumed.incrementAndGet();
+                            chunk = new ArrayList<org.neo4j.driver.Record>(chunkSize);
+                        }
+                    }
+                    if(!chunk.isEmpty()) chunkConsumer.accept(chunk);
+                    return null;
                 }
-                catch (IOException ioException) {
-                    logger.error(ioException.getMessage());
+                catch (RuntimeException runtimeException) {
+                    if(!(runtimeException instanceof RetryableException) || chunksConsumed.get() == 0) throw runtimeException;
+                    throw new IllegalStateException("The read failed after " + chunksConsumed.get() + " chunk" + (chunksConsumed.get() == 1 ? " was" : "s were") + " already processed, so it cannot be retried without repeating records", runtimeException);
                 }
             });
         }
-        catch (IOException ioException) {
-            logger.error(ioException.getMessage());
+    }
+
+    List<Map<String,Object>> readCollectionPartitions(String cypherQuery, int numberOfPartitions) {
+        if(numberOfPartitions < 1) return null;
+        if(!cypherQuery.contains("$partitionStart") || !cypherQuery.contains("$partitionEnd")) {
+            logger.warn("Collection partitioning was requested but the initial collection cypher does not use both $partitionStart and $partitionEnd. It will be processed in a single batch.");
+            return null;
+        }
+        if(PARTITION_ON_ID.matcher(cypherQuery).find()) {
+            logger.warn("The initial collection cypher compares id() with $partitionStart or $partitionEnd, which cannot use an index, so every partition will scan all candidate nodes. Partitioning on an integer property with a range index avoids this.");
+        }
+        logger.info("Retrieving partition key bounds for the initial collection step using:\n{}", COLLECT_PARTITION_BOUNDS_CYPHER);
+        org.neo4j.driver.Record bounds;
+        try (var session = driver.session(SessionConfig.builder().withDatabase(NEO4J_DATABASE).withDefaultAccessMode(AccessMode.READ).build())) {
+            bounds = session.executeRead(tx -> tx.run(COLLECT_PARTITION_BOUNDS_CYPHER, runParameters).single());
+        }
+        List<Map<String,Object>> partitions = new ArrayList<Map<String,Object>>();
+        if(bounds.get(0).isNull() || bounds.get(1).isNull()) {
+            logger.info("No partition key bounds were found so there is nothing to collect");
+            return partitions;
+        }
+        long minimum = bounds.get(0).asLong();
+        long maximum = bounds.get(1).asLong();
+        long partitionWidth = Math.max(1, (maximum - minimum) / numberOfPartitions + 1);
+        for(long partitionStart = minimum; partitionStart <= maximum; partitionStart += partitionWidth) {
+            Map<String,Object> partition = new HashMap<>();
+            partition.put("partitionStart", partitionStart);
+            partition.put("partitionEnd", Math.min(partitionStart + partitionWidth, maximum + 1));
+            partitions.add(partition);
+        }
+        logger.info("Partition keys from {} to {} will be collected in {} partition{} of up to {} key{}", String.format("%,d", minimum), String.format("%,d", maximum), partitions.size(), partitions.size() == 1 ? "" : "s", String.format("%,d", partitionWidth), partitionWidth == 1 ? "" : "s");
+        return partitions;
+    }
+
+    void streamPartitionedReadCypher(String cypherQuery, List<Map<String,Object>> partitions, int chunkSize, int numberOfWorkerThreads, Consumer<List<org.neo4j.driver.Record>> chunkConsumer) {
+        ExecutorService executorService = Executors.newFixedThreadPool(numberOfWorkerThreads);
+        try {
+            partitions
+            .stream()
+            .map(partition -> CompletableFuture.runAsync(() -> {
+                logger.info("Streaming partition from {} up to {}", String.format("%,d", partition.get("partitionStart")), String.format("%,d", partition.get("partitionEnd")));
+                streamReadCypher(cypherQuery, partition, chunkSize, chunkConsumer);
+            }, executorService))
+            .toList()
+            .forEach(CompletableFuture::join);
+        }
+        finally {
+            executorService.shutdownNow();
         }
-        logger.warn("Hack to remove extra quotes when writing records to CSV. Revisit.");
-        logger.info("Results written to {}", Paths.get(RESULT_FILES_PATH, fileName));
     }
 
-    List<org.neo4j.driver.Record> processReadCypherInBatches(String cypherQuery, List<org.neo4j.driver.Record> parameterRecords, int batchSize, int numberOfWorkerThreads) {
-        List<org.neo4j.driver.Record> combinedResults = new ArrayList<org.neo4j.driver.Record>();
+    ParameterStore processPartitionedReadCypher(String cypherQuery, List<Map<String,Object>> partitions, int chunkSize, int numberOfWorkerThreads, ResultSink resultSink, RunMetrics.StepMetrics stepMetrics) {
+        logger.info("The following read cypher will be streamed as {} partition{} using {} worker thread{}:\n{}", partitions.size(), partitions.size() == 1 ? "" : "s", numberOfWorkerThreads, numberOfWorkerThreads == 1 ? "" : "s", cypherQuery);
+        ParameterStore combinedResults = new ParameterStore(parameterStoreAllocator);
+        streamPartitionedReadCypher(cypherQuery, partitions, chunkSize, numberOfWorkerThreads, chunk -> {
+            combinedResults.append(chunk);
+            resultSink.write(chunk);
+            stepMetrics.recordsStreamed(chunk.size());
+        });
+        return combinedResults;
+    }
+
+    BatchResult readBatch(String cypherQuery, List<Map<String,Object>> parameterRecordBatch) {
+        int parameterRecordBatchSize = parameterRecordBatch.size();
+        logger.info("Processing batch of {} parameter record{}", String.format("%,d", parameterRecordBatchSize), parameterRecordBatchSize == 1 ? "" : "s");
+        List<org.neo4j.driver.Record> batchResults;
+        AtomicInteger attempts = new AtomicInteger();
+        AtomicReference<SummaryCounters> counters = new AtomicReference<SummaryCounters>();
+        long startTime = System.nanoTime();
+        try (var session = driver.session(SessionConfig.builder().withDatabase(NEO4J_DATABASE).build())) {
+            batchResults = session.executeRead(tx -> {
+                                attempts.incrementAndGet();
+                                Map<String,Object> queryParameters = new HashMap<>(runParameters);
+                                queryParameters.put("batch", parameterRecordBatch);
+                                var result = tx.run(cypherQuery, queryParameters);
+                                var records = result.list();
+                                counters.set(result.consume().counters());
+                                return records;
+                            });
+        }
+        int batchResultsSize = batchResults.size();
+        logger.info("Retrieved {} parameter record{} from batch", String.format("%,d", batchResultsSize), batchResultsSize == 1 ? "" : "s");
+        return new BatchResult(batchResults, attempts.get(), System.nanoTime() - startTime, counters.get());
+    }
+
+    BatchResult writeBatch(String cypherQuery, List<Map<String,Object>> parameterRecordBatch) {
+        int parameterRecordBatchSize = parameterRecordBatch.size();
+        logger.info("Processing batch of {} parameter record{}", String.format("%,d", parameterRecordBatchSize), parameterRecordBatchSize == 1 ? "" : "s");
+        List<org.neo4j.driver.Record> batchResults;
+        AtomicInteger attempts = new AtomicInteger();
+        AtomicReference<SummaryCounters> counters = new AtomicReference<SummaryCounters>();
+        long startTime = System.nanoTime();
+        try (var session = driver.session(SessionConfig.builder().withDatabase(NEO4J_DATABASE).build())) {
+            batchResults = session.executeWrite(tx -> {
+                                attempts.incrementAndGet();
+                                Map<String,Object> queryParameters = new HashMap<>(runParameters);
+                                queryParameters.put("batch", parameterRecordBatch);
+                                var result = tx.run(cypherQuery, queryParameters);
+                                var records = result.list();
+                                counters.set(result.consume().counters());
+                                return records;
+                            });
+        }
+        int batchResultsSize = batchResults.size();
+        logger.info("Retrieved {} result record{} from batch", String.format("%,d", batchResultsSize), batchResultsSize == 1 ? "" : "s");
+        return new BatchResult(batchResults, attempts.get(), System.nanoTime() - startTime, counters.get());
+    }
+
+    /**
+     * Splits rows {@code 0} to {@code numberOfRows} into ranges of up to {@code batchSize} rows, leaving out the
+     * skipped rows. Each range is returned as its first row (inclusive) and last row (exclusive).
+     */
+    static List<int[]> batchRanges(int numberOfRows, int batchSize, BitSet skippedRows) {
+        List<int[]> batchRanges = new ArrayList<int[]>();
+        int fromRow = skippedRows.nextClearBit(0);
+        while(fromRow < numberOfRows) {
+            int nextSkippedRow = skippedRows.nextSetBit(fromRow);
+            int toRow = Math.min(Math.min(fromRow + batchSize, numberOfRows), nextSkippedRow == -1 ? Integer.MAX_VALUE : nextSkippedRow);
+            batchRanges.add(new int[] {fromRow, toRow});
+            fromRow = skippedRows.nextClearBit(toRow);
+        }
+        return batchRanges;
+    }
+
+    /**
+     * Returns a batch executor for one step. The threads engine runs each batch on one of a new pool of worker
+     * threads, which is shut down when the executor is closed. The async engine shares the sessions and threads of
+     * the run's async batch executor, so the number of worker threads is not used. Either way, each batch is counted
+     * in the step metrics as it completes.
+     */
+    BatchExecutor openBatchExecutor(int numberOfWorkerThreads, RunMetrics.StepMetrics stepMetrics) {
+        if(asyncBatchExecutor != null) return (cypherQuery, numberOfParameterRecords, parameterRecordBatch, accessMode) -> measureBatch(asyncBatchExecutor.submit(cypherQuery, numberOfParameterRecords, parameterRecordBatch, accessMode), numberOfParameterRecords, stepMetrics);
+        ExecutorService executorService = Executors.newFixedThreadPool(numberOfWorkerThreads);
+        return new BatchExecutor() {
+            @Override
+            public CompletableFuture<BatchResult> submit(String cypherQuery, int numberOfParameterRecords, Supplier<List<Map<String,Object>>> parameterRecordBatch, AccessMode accessMode) {
+                return measureBatch(CompletableFuture.supplyAsync(() -> accessMode == AccessMode.WRITE ? writeBatch(cypherQuery, parameterRecordBatch.get()) : readBatch(cypherQuery, parameterRecordBatch.get()), executorService), numberOfParameterRecords, stepMetrics);
+            }
+
+            @Override
+            public void close() {
+                executorService.shutdownNow();
+            }
+        };
+    }
+
+    private static CompletableFuture<BatchResult> measureBatch(CompletableFuture<BatchResult> batchFuture, int numberOfParameterRecords, RunMetrics.StepMetrics stepMetrics) {
+        return batchFuture.thenApply(batchResult -> {
+            stepMetrics.batchCompleted(numberOfParameterRecords, batchResult);
+            return batchResult;
+        });
+    }
+
+    /**
+     * Returns the number of batches a step may have in flight, which is its number of worker threads unless the
+     * async engine is used.
+     */
+    int maximumBatchesInFlight(int numberOfWorkerThreads) {
+        return asyncBatchExecutor == null ? numberOfWorkerThreads : asyncBatchExecutor.maximumTransactionsInFlight();
+    }
+
+    String batchWorkersDescription(int numberOfWorkerThreads) {
+        if(asyncBatchExecutor != null) return "using the async engine";
+        return "using " + numberOfWorkerThreads + " worker thread" + (numberOfWorkerThreads == 1 ? "" : "s");
+    }
+
+    /**
+     * Submits every batch range. The first batch to fail stops further batches from being submitted and its
+     * exception is rethrown.
+     */
+    void processBatches(List<int[]> batchRanges, Function<int[],CompletableFuture<BatchResult>> batchProcessor) {
+        CompletableFuture<Void> firstFailure = new CompletableFuture<Void>();
+        List<CompletableFuture<?>> batchFutures = new ArrayList<CompletableFuture<?>>();
+        for(int[] batchRange : batchRanges) {
+            if(firstFailure.isDone()) break;
+            batchFutures.add(batchProcessor.apply(batchRange).whenComplete((ignored, throwable) -> {
+                if(throwable != null) firstFailure.completeExceptionally(throwable);
+            }));
+        }
+        CompletableFuture.anyOf(CompletableFuture.allOf(batchFutures.toArray(CompletableFuture[]::new)), firstFailure).join();
+    }
+
+    /**
+     * Processes rows {@code 0} to {@code numberOfRows}, leaving out the skipped rows, in batches whose size and
+     * number in flight are chosen by the adaptive batch controller as batches complete.
+     */
+    void processAdaptiveBatches(int numberOfRows, BitSet skippedRows, AdaptiveBatchController adaptiveBatchController, Function<int[],CompletableFuture<BatchResult>> batchProcessor) {
+        CompletableFuture<Void> firstFailure = new CompletableFuture<Void>();
+        List<CompletableFuture<?>> batchFutures = new ArrayList<CompletableFuture<?>>();
+        try {
+            int fromRow = skippedRows.nextClearBit(0);
+            while(fromRow < numberOfRows && !firstFailure.isDone()) {
+                int dispatchEpoch = adaptiveBatchController.acquire();
+                int nextSkippedRow = skippedRows.nextSetBit(fromRow);
+                int toRow = Math.min(Math.min(fromRow + adaptiveBatchController.batchSize(), numberOfRows), nextSkippedRow == -1 ? Integer.MAX_VALUE : nextSkippedRow);
+                batchFutures.add(submitAdaptiveBatch(new int[] {fromRow, toRow}, dispatchEpoch, adaptiveBatchController, batchProcessor).whenComplete((ignored, throwable) -> {
+                    if(throwable != null) firstFailure.completeExceptionally(throwable);
+                }));
+                fromRow = skippedRows.nextClearBit(toRow);
+            }
+            CompletableFuture.anyOf(CompletableFuture.allOf(batchFutures.toArray(CompletableFuture[]::new)), firstFailure).join();
+            adaptiveBatchController.logSummary();
+        }
+        catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting to dispatch a batch", interruptedException);
+        }
+    }
+
+    private CompletableFuture<BatchResult> submitAdaptiveBatch(int[] batchRange, int dispatchEpoch, AdaptiveBatchController adaptiveBatchController, Function<int[],CompletableFuture<BatchResult>> batchProcessor) {
+        CompletableFuture<BatchResult> batchFuture;
+        try {
+            batchFuture = batchProcessor.apply(batchRange);
+        }
+        catch (RuntimeException exception) {
+            adaptiveBatchController.release();
+            throw exception;
+        }
+        return batchFuture.whenComplete((batchResult, throwable) -> {
+            if(batchResult != null) adaptiveBatchController.completed(dispatchEpoch, batchResult.attempts(), batchResult.latencyNanoseconds());
+            adaptiveBatchController.release();
+        });
+    }
+
+    /**
+     * Processes each lane of a shard plan as a chain of batches, each submitted once the one before it commits,
+     * leaving out the skipped positions. Batch sizes and the number of lanes with a batch in flight come from the
+     * adaptive batch controller when one is given. Each lane submits its next batch from a thread of its own, as
+     * it may have to wait for the controller, so that the threads that complete batches are never held up.
+     */
+    void processShardedBatches(ShardPlan shardPlan, BitSet skippedPositions, int batchSize, AdaptiveBatchController adaptiveBatchController, Function<int[],CompletableFuture<BatchResult>> batchProcessor) {
+        ExecutorService laneExecutorService = Executors.newFixedThreadPool(shardPlan.numberOfLanes());
+        CompletableFuture<Void> firstFailure = new CompletableFuture<Void>();
+        try {
+            CompletableFuture<?>[] laneFutures = IntStream.range(0, shardPlan.numberOfLanes())
+            .mapToObj(lane -> CompletableFuture.supplyAsync(() -> lane, laneExecutorService).thenCompose(ignored -> processShardLane(shardPlan, lane, shardPlan.laneStart(lane), skippedPositions, batchSize, adaptiveBatchController, batchProcessor, laneExecutorService, firstFailure)).whenComplete((ignored, throwable) -> {
+                if(throwable != null) firstFailure.completeExceptionally(throwable);
+            }))
+            .toArray(CompletableFuture[]::new);
+            CompletableFuture.anyOf(CompletableFuture.allOf(laneFutures), firstFailure).join();
+            if(adaptiveBatchController != null) adaptiveBatchController.logSummary();
+        }
+        finally {
+            laneExecutorService.shutdownNow();
+        }
+    }
+
+    private CompletableFuture<Void> processShardLane(ShardPlan shardPlan, int lane, int fromPosition, BitSet skippedPositions, int batchSize, AdaptiveBatchController adaptiveBatchController, Function<int[],CompletableFuture<BatchResult>> batchProcessor, ExecutorService laneExecutorService, CompletableFuture<Void> firstFailure) {
+        int batchStart = skippedPositions.nextClearBit(fromPosition);
+        if(batchStart >= shardPlan.laneEnd(lane) || firstFailure.isDone()) return CompletableFuture.completedFuture(null);
+        int nextSkippedPosition = skippedPositions.nextSetBit(batchStart);
+        CompletableFuture<BatchResult> batchFuture;
+        int batchEnd;
+        if(adaptiveBatchController == null) {
+            batchEnd = Math.min(Math.min(batchStart + batchSize, shardPlan.laneEnd(lane)), nextSkippedPosition == -1 ? Integer.MAX_VALUE : nextSkippedPosition);
+            batchFuture = batchProcessor.apply(new int[] {batchStart, batchEnd});
+        }
+        else {
+            int dispatchEpoch;
+            try {
+                dispatchEpoch = adaptiveBatchController.acquire();
+            }
+            catch (InterruptedException interruptedException) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting to dispatch a batch", interruptedException);
+            }
+            batchEnd = Math.min(Math.min(batchStart + adaptiveBatchController.batchSize(), shardPlan.laneEnd(lane)), nextSkippedPosition == -1 ? Integer.MAX_VALUE : nextSkippedPosition);
+            batchFuture = submitAdaptiveBatch(new int[] {batchStart, batchEnd}, dispatchEpoch, adaptiveBatchController, batchProcessor);
+        }
+        return batchFuture.thenComposeAsync(batchResult -> processShardLane(shardPlan, lane, batchEnd, skippedPositions, batchSize, adaptiveBatchController, batchProcessor, laneExecutorService, firstFailure), laneExecutorService);
+    }
+
+    ParameterStore processReadCypherInBatches(String cypherQuery, ParameterStore parameterRecords, int batchSize, int numberOfWorkerThreads, ResultSink resultSink, RunMetrics.StepMetrics stepMetrics) {
+        ParameterStore combinedResults = new ParameterStore(parameterStoreAllocator);
         if(parameterRecords == null) {
             logger.info("The following read cypher will be processed in a single batch:\n{}", cypherQuery);
-            try (var session = driver.session(SessionConfig.builder().withDatabase(NEO4J_DATABASE).build())) {
-                combinedResults = session.executeRead(tx -> {
-                                    var result = tx.run(cypherQuery);
-                                    return result.list();
-                                });
-            }
+            streamReadCypher(cypherQuery, Map.of(), batchSize, chunk -> {
+                combinedResults.append(chunk);
+                resultSink.write(chunk);
+                stepMetrics.recordsStreamed(chunk.size());
+            });
         }
         else {
-            List<List<org.neo4j.driver.Record>> parameterRecordBatches = ListUtils.partition(parameterRecords.stream().collect(Collectors.toList()), batchSize);
-            int parameterRecordBatchesSize = parameterRecordBatches.size();
-            logger.info("The following read cypher will be processed as {} parameter batch{} of {} using {} worker thread{} and then recombined:\n{}", String.format("%,d", parameterRecordBatchesSize), parameterRecordBatchesSize == 1 ? "" : "es", String.format("%,d", parameterRecordBatches.size() == 0 ? 0 : parameterRecordBatches.get(0).size()), numberOfWorkerThreads, numberOfWorkerThreads == 1 ? "" : "s", cypherQuery);
-            ExecutorService executorService = Executors.newFixedThreadPool(numberOfWorkerThreads);
-            List<List<org.neo4j.driver.Record>> results = parameterRecordBatches
-            .stream()
-            .map(parameterRecordBatch -> CompletableFuture.supplyAsync(() -> {
-                int parameterRecordBatchSize = parameterRecordBatch.size();
-                logger.info("Processing batch of {} parameter record{}", String.format("%,d", parameterRecordBatchSize), parameterRecordBatchSize == 1 ? "" : "s");
-                List<org.neo4j.driver.Record> batchResults;
-                try (var session = driver.session(SessionConfig.builder().withDatabase(NEO4J_DATABASE).build())) {
-                    batchResults = session.executeRead(tx -> {
-                                        Map<String,Object> queryParameters = new HashMap<>();
-                                        queryParameters.put("batch", parameterRecordBatch.stream().map(record -> record.asMap()).toList());
-                                        var result = tx.run(cypherQuery, queryParameters);
-                                        return result.list();
-                                    });
-                }
-                int batchResultsSize = batchResults.size();
-                logger.info("Retrieved {} parameter record{} from batch", String.format("%,d", batchResultsSize), batchResultsSize == 1 ? "" : "s");
-                return batchResults;
-            }, executorService))
-            .collect(Collectors.collectingAndThen(Collectors.toList(), list -> list.stream().map(CompletableFuture::join).collect(Collectors.toList())));
-            executorService.shutdown();
-            combinedResults = results.stream().flatMap(List::stream).collect(Collectors.toList());
+            List<int[]> batchRanges = batchRanges(parameterRecords.size(), batchSize, new BitSet());
+            int parameterRecordBatchesSize = batchRanges.size();
+            logger.info("The following read cypher will be processed as {} parameter batch{} of {} {} and then recombined:\n{}", String.format("%,d", parameterRecordBatchesSize), parameterRecordBatchesSize == 1 ? "" : "es", String.format("%,d", Math.min(batchSize, parameterRecords.size())), batchWorkersDescription(numberOfWorkerThreads), cypherQuery);
+            try (BatchExecutor batchExecutor = openBatchExecutor(numberOfWorkerThreads, stepMetrics)) {
+                processBatches(batchRanges, batchRange -> batchExecutor.submit(cypherQuery, batchRange[1] - batchRange[0], () -> parameterRecords.rows(batchRange[0], batchRange[1]), AccessMode.READ).thenApply(batchResult -> {
+                    combinedResults.append(batchResult.records());
+                    resultSink.write(batchResult.records());
+                    return batchResult;
+                }));
+            }
         }
         return combinedResults;
     }
 
-    List<org.neo4j.driver.Record> collect(int batchSize, int numberOfWorkerThreads) {
+    List<String> readCollectionCypherQueries() {
         String collectionCypherFilesPath = COLLECT_FILES_PATH;
         String collectionFileNamesRegex = "^collect.*\\.cypher$";
         String defaultCollectionCypher = "MATCH (n) RETURN id(n) AS id";
@@ -158,63 +535,122 @@ public class BatchUpdater implements AutoCloseable {
             collectionCypherQueries = new ArrayList<String>();
             collectionCypherQueries.add(defaultCollectionCypher);
         }
-        logger.info("Processing collection step 1 of {}", collectionCypherQueries.size());
-        List<org.neo4j.driver.Record> recordsFromPreviousStep = processReadCypherInBatches(collectionCypherQueries.get(0), null, 0, 0);
-        int recordsFromPreviousStepSize = recordsFromPreviousStep.size();
-        logger.info("Retrieved {} parameter record{} from initial collection step", String.format("%,d", recordsFromPreviousStepSize), recordsFromPreviousStepSize == 1 ? "" : "s");
-        if(SAVE_RESULTS && recordsFromPreviousStepSize > 0) writeResultsFile(recordsFromPreviousStep, "collect_1.csv");
-        for(int stepNumber = 2; stepNumber <= collectionCypherQueries.size(); stepNumber++) {
+        return collectionCypherQueries;
+    }
+
+    ParameterStore collect(int batchSize, int numberOfWorkerThreads) {
+        List<String> collectionCypherQueries = readCollectionCypherQueries();
+        List<CheckpointJournal.Step> checkpointSteps = new ArrayList<CheckpointJournal.Step>();
+        CheckpointJournal.Step checkpointStep = CheckpointJournal.START;
+        for(int stepNumber = 1; stepNumber <= collectionCypherQueries.size(); stepNumber++) {
+            checkpointStep = checkpointStep.next("collect_" + stepNumber, collectionCypherQueries.get(stepNumber-1));
+            checkpointSteps.add(checkpointStep);
+        }
+        lastCheckpointStep = checkpointStep;
+        ParameterStore recordsFromPreviousStep = null;
+        int recordsFromPreviousStepSize;
+        int nextStepNumber = 2;
+        for(int stepNumber = collectionCypherQueries.size(); checkpointJournal != null && stepNumber >= 1; stepNumber--) {
+            if(checkpointJournal.isStepCompleted(checkpointSteps.get(stepNumber-1))) {
+                logger.info("Collection step{} 1{} completed in the checkpointed run and will be skipped", stepNumber == 1 ? "" : "s", stepNumber == 1 ? " was" : " to " + stepNumber + " were");
+                recordsFromPreviousStep = new ParameterStore(parameterStoreAllocator);
+                checkpointJournal.loadStep(checkpointSteps.get(stepNumber-1), recordsFromPreviousStep);
+                nextStepNumber = stepNumber + 1;
+                break;
+            }
+        }
+        if(recordsFromPreviousStep == null) {
+            logger.info("Processing collection step 1 of {}", collectionCypherQueries.size());
+            List<Map<String,Object>> partitions = readCollectionPartitions(collectionCypherQueries.get(0), COLLECT_PARTITIONS);
+            RunMetrics.StepMetrics stepMetrics = runMetrics.startStep("collect_1", -1);
+            try (ResultSink resultSink = openResultSink("collect_1")) {
+                recordsFromPreviousStep = partitions == null ? processReadCypherInBatches(collectionCypherQueries.get(0), null, batchSize, numberOfWorkerThreads, resultSink, stepMetrics) : processPartitionedReadCypher(collectionCypherQueries.get(0), partitions, batchSize, numberOfWorkerThreads, resultSink, stepMetrics);
+            }
+            stepMetrics.completed();
+            recordsFromPreviousStepSize = recordsFromPreviousStep.size();
+            logger.info("Retrieved {} parameter record{} from initial collection step", String.format("%,d", recordsFromPreviousStepSize), recordsFromPreviousStepSize == 1 ? "" : "s");
+            completeCheckpointStep(checkpointSteps.get(0), recordsFromPreviousStep);
+        }
+        for(int stepNumber = nextStepNumber; stepNumber <= collectionCypherQueries.size(); stepNumber++) {
             logger.info("Processing collection step {} of {}", stepNumber, collectionCypherQueries.size());
-            recordsFromPreviousStep = processReadCypherInBatches(collectionCypherQueries.get(stepNumber-1), recordsFromPreviousStep, batchSize, numberOfWorkerThreads);
+            ParameterStore recordsFromStep;
+            RunMetrics.StepMetrics stepMetrics = runMetrics.startStep("collect_" + stepNumber, recordsFromPreviousStep.size());
+            try (ResultSink resultSink = openResultSink("collect_" + stepNumber)) {
+                recordsFromStep = processReadCypherInBatches(collectionCypherQueries.get(stepNumber-1), recordsFromPreviousStep, batchSize, numberOfWorkerThreads, resultSink, stepMetrics);
+            }
+            stepMetrics.completed();
+            recordsFromPreviousStep.close();
+            recordsFromPreviousStep = recordsFromStep;
             recordsFromPreviousStepSize = recordsFromPreviousStep.size();
             logger.info("Retrieved {} parameter record{} from collection step {}", String.format("%,d", recordsFromPreviousStepSize), recordsFromPreviousStepSize == 1 ? "" : "s", stepNumber);
-            if(SAVE_RESULTS && recordsFromPreviousStepSize > 0) writeResultsFile(recordsFromPreviousStep, "collect_" + stepNumber + ".csv");
+            completeCheckpointStep(checkpointSteps.get(stepNumber-1), recordsFromPreviousStep);
         }
         return recordsFromPreviousStep;
     }
 
-    List<org.neo4j.driver.Record> processWriteCypherInBatches(String cypherQuery, List<org.neo4j.driver.Record> parameterRecords, int batchSize, int numberOfWorkerThwrites) {
-        List<org.neo4j.driver.Record> combinedResults = new ArrayList<org.neo4j.driver.Record>();
+    ParameterStore processWriteCypherInBatches(String cypherQuery, ParameterStore parameterRecords, int batchSize, int numberOfWorkerThreads, CheckpointJournal.Step checkpointStep, ResultSink resultSink, RunMetrics.StepMetrics stepMetrics) {
+        ParameterStore combinedResults = new ParameterStore(parameterStoreAllocator);
         if(parameterRecords == null) {
             logger.info("The followiong write cypher will be processed in a single batch:\n{}", cypherQuery);
+            AtomicInteger attempts = new AtomicInteger();
+            AtomicReference<SummaryCounters> counters = new AtomicReference<SummaryCounters>();
+            long startTime = System.nanoTime();
             try (var session = driver.session(SessionConfig.builder().withDatabase(NEO4J_DATABASE).build())) {
-                combinedResults = session.executeWrite(tx -> {
-                                    var result = tx.run(cypherQuery);
-                                    return result.list();
+                List<org.neo4j.driver.Record> results = session.executeWrite(tx -> {
+                                    attempts.incrementAndGet();
+                                    var result = tx.run(cypherQuery, runParameters);
+                                    var records = result.list();
+                                    counters.set(result.consume().counters());
+                                    return records;
                                 });
+                combinedResults.append(results);
+                resultSink.write(results);
+                stepMetrics.batchCompleted(0, new BatchResult(results, attempts.get(), System.nanoTime() - startTime, counters.get()));
             }
         }
         else {
-            List<List<org.neo4j.driver.Record>> parameterRecordBatches = ListUtils.partition(parameterRecords.stream().collect(Collectors.toList()), batchSize);
-            int parameterRecordBatchesSize = parameterRecordBatches.size();
-            logger.info("The following write cypher will be processed as {} parameter batch{} of {} using {} worker thread{} and then recombined:\n{}", String.format("%,d", parameterRecordBatchesSize), parameterRecordBatchesSize == 1 ? "" : "es", String.format("%,d", parameterRecordBatches.size() == 0 ? 0 : parameterRecordBatches.get(0).size()), numberOfWorkerThwrites, numberOfWorkerThwrites == 1 ? "" : "s", cypherQuery);
-            ExecutorService executorService = Executors.newFixedThreadPool(numberOfWorkerThwrites);
-            List<List<org.neo4j.driver.Record>> results = parameterRecordBatches
-            .stream()
-            .map(parameterRecordBatch -> CompletableFuture.supplyAsync(() -> {
-                int parameterRecordBatchSize = parameterRecordBatch.size();
-                logger.info("Processing batch of {} parameter record{}", String.format("%,d", parameterRecordBatchSize), parameterRecordBatchSize == 1 ? "" : "s");
-                List<org.neo4j.driver.Record> batchResults;
-                try (var session = driver.session(SessionConfig.builder().withDatabase(NEO4J_DATABASE).build())) {
-                    batchResults = session.executeWrite(tx -> {
-                                        Map<String,Object> queryParameters = new HashMap<>();
-                                        queryParameters.put("batch", parameterRecordBatch.stream().map(record -> record.asMap()).toList());
-                                        var result = tx.run(cypherQuery, queryParameters);
-                                        return result.list();
-                                    });
+            boolean checkpointed = checkpointJournal != null && checkpointStep != null;
+            BitSet committedRows = checkpointed ? checkpointJournal.loadCommittedBatches(checkpointStep, combinedResults) : new BitSet();
+            stepMetrics.parameterRecordsSkipped(committedRows.cardinality());
+            resultSink.write(combinedResults);
+            ShardPlan shardPlan = UPDATE_SHARD_KEY == null ? null : ShardPlan.build(parameterRecords, UPDATE_SHARD_KEY, numberOfWorkerThreads);
+            int[] rowOrder = shardPlan == null ? null : shardPlan.rowOrder();
+            AdaptiveBatchController adaptiveBatchController = null;
+            if(shardPlan != null) {
+                int numberOfLanes = shardPlan.numberOfLanes();
+                logger.info("The following write cypher will be processed in {}parameter batches of {} across {} lane{}, each committing one batch at a time, and then recombined:\n{}", UPDATE_ADAPTIVE ? "adaptively sized " : "", String.format("%,d", Math.min(batchSize, parameterRecords.size())), numberOfLanes, numberOfLanes == 1 ? "" : "s", cypherQuery);
+                if(UPDATE_ADAPTIVE) adaptiveBatchController = new AdaptiveBatchController(batchSize, UPDATE_BATCH_SIZE_MIN, UPDATE_BATCH_SIZE_MAX, numberOfLanes, UPDATE_THREAD_COUNT_MIN, Math.min(UPDATE_THREAD_COUNT_MAX, numberOfLanes), UPDATE_TARGET_LATENCY);
+            }
+            else if(UPDATE_ADAPTIVE) {
+                logger.info("The following write cypher will be processed in adaptively sized parameter batches and then recombined:\n{}", cypherQuery);
+                adaptiveBatchController = new AdaptiveBatchController(batchSize, UPDATE_BATCH_SIZE_MIN, UPDATE_BATCH_SIZE_MAX, numberOfWorkerThreads, UPDATE_THREAD_COUNT_MIN, UPDATE_THREAD_COUNT_MAX, UPDATE_TARGET_LATENCY);
+                numberOfWorkerThreads = adaptiveBatchController.maximumConcurrency();
+            }
+            try (BatchExecutor batchExecutor = openBatchExecutor(numberOfWorkerThreads, stepMetrics)) {
+                Function<int[],CompletableFuture<BatchResult>> batchProcessor = batchRange -> batchExecutor.submit(cypherQuery, batchRange[1] - batchRange[0], () -> parameterRecords.rows(rowOrder, batchRange[0], batchRange[1]), AccessMode.WRITE).thenApply(batchResult -> {
+                    if(checkpointed) checkpointJournal.batchCommitted(checkpointStep, batchRange[0], batchRange[1], batchResult.records());
+                    combinedResults.append(batchResult.records());
+                    resultSink.write(batchResult.records());
+                    return batchResult;
+                });
+                if(shardPlan != null) {
+                    processShardedBatches(shardPlan, committedRows, batchSize, adaptiveBatchController, batchProcessor);
                 }
-                int batchResultsSize = batchResults.size();
-                logger.info("Retrieved {} result record{} from batch", String.format("%,d", batchResultsSize), batchResultsSize == 1 ? "" : "s");
-                return batchResults;
-            }, executorService))
-            .collect(Collectors.collectingAndThen(Collectors.toList(), list -> list.stream().map(CompletableFuture::join).collect(Collectors.toList())));
-            executorService.shutdown();
-            combinedResults = results.stream().flatMap(List::stream).collect(Collectors.toList());
+                else if(UPDATE_ADAPTIVE) {
+                    processAdaptiveBatches(parameterRecords.size(), committedRows, adaptiveBatchController, batchProcessor);
+                }
+                else {
+                    List<int[]> batchRanges = batchRanges(parameterRecords.size(), batchSize, committedRows);
+                    int parameterRecordBatchesSize = batchRanges.size();
+                    logger.info("The following write cypher will be processed as {} parameter batch{} of {} {} and then recombined:\n{}", String.format("%,d", parameterRecordBatchesSize), parameterRecordBatchesSize == 1 ? "" : "es", String.format("%,d", Math.min(batchSize, parameterRecords.size())), batchWorkersDescription(numberOfWorkerThreads), cypherQuery);
+                    processBatches(batchRanges, batchProcessor);
+                }
+            }
         }
         return combinedResults;
     }
 
-    List<org.neo4j.driver.Record> update(List<org.neo4j.driver.Record> parameterRecords, int batchSize, int numberOfWorkerThreads) {
+    List<String> readUpdateCypherQueries() {
         String updateCypherFilesPath = UPDATE_FILES_PATH;
         String updateFileNamesRegex = "^update.*\\.cypher$";
         String defaultUpdateCypher = "MATCH (n) RETURN count(n) AS numberOfNodes";
@@ -244,34 +680,123 @@ public class BatchUpdater implements AutoCloseable {
             updateCypherQueries = new ArrayList<String>();
             updateCypherQueries.add(defaultUpdateCypher);
         }
-        List<org.neo4j.driver.Record> recordsFromPreviousStep = parameterRecords;
+        return updateCypherQueries;
+    }
+
+    ParameterStore update(ParameterStore parameterRecords, int batchSize, int numberOfWorkerThreads) {
+        List<String> updateCypherQueries = readUpdateCypherQueries();
+        ParameterStore recordsFromPreviousStep = parameterRecords;
         int recordsFromPreviousStepSize;
+        CheckpointJournal.Step checkpointStep = lastCheckpointStep;
         for(int stepNumber = 1; stepNumber <= updateCypherQueries.size(); stepNumber++) {
-            logger.info("Processing update step {} of {}", stepNumber, updateCypherQueries.size());
-            recordsFromPreviousStep = processWriteCypherInBatches(updateCypherQueries.get(stepNumber-1), recordsFromPreviousStep, batchSize, numberOfWorkerThreads);
+            // Sharding reorders the rows that committed batches are journaled against, so it is part of the step key.
+            checkpointStep = checkpointStep.next("update_" + stepNumber, updateCypherQueries.get(stepNumber-1) + (UPDATE_SHARD_KEY == null ? "" : "\u0000" + UPDATE_SHARD_KEY + "\u0000" + numberOfWorkerThreads));
+            ParameterStore recordsFromStep;
+            boolean skipped = checkpointJournal != null && checkpointJournal.isStepCompleted(checkpointStep);
+            if(skipped) {
+                logger.info("Update step {} of {} was completed in the checkpointed run and will be skipped", stepNumber, updateCypherQueries.size());
+                recordsFromStep = new ParameterStore(parameterStoreAllocator);
+                checkpointJournal.loadStep(checkpointStep, recordsFromStep);
+            }
+            else {
+                logger.info("Processing update step {} of {}", stepNumber, updateCypherQueries.size());
+                RunMetrics.StepMetrics stepMetrics = runMetrics.startStep("update_" + stepNumber, recordsFromPreviousStep.size());
+                try (ResultSink resultSink = openResultSink("update_" + stepNumber)) {
+                    recordsFromStep = processWriteCypherInBatches(updateCypherQueries.get(stepNumber-1), recordsFromPreviousStep, batchSize, numberOfWorkerThreads, checkpointStep, resultSink, stepMetrics);
+                }
+                stepMetrics.completed();
+                completeCheckpointStep(checkpointStep, recordsFromStep);
+            }
+            if(recordsFromPreviousStep != parameterRecords) recordsFromPreviousStep.close();
+            recordsFromPreviousStep = recordsFromStep;
             recordsFromPreviousStepSize = recordsFromPreviousStep.size();
             logger.info("Retrieved {} result record{} from update step {} that will be used as parameter records for any next step", String.format("%,d", recordsFromPreviousStepSize), recordsFromPreviousStepSize == 1 ? "" : "s", stepNumber);
-            if(SAVE_RESULTS && recordsFromPreviousStepSize > 0) writeResultsFile(recordsFromPreviousStep, "update_" + stepNumber + ".csv");
         }
+        lastCheckpointStep = checkpointStep;
         return recordsFromPreviousStep;
     }
 
-    public static void main(String... args) {
-        Configurator.setLevel(logger, LOG_LEVEL);
+    void openCheckpointJournal(boolean resume) {
+        try {
+            checkpointJournal = new CheckpointJournal(resultsFilePath("checkpoint"), resume);
+        }
+        catch (IOException ioException) {
+            throw new UncheckedIOException(ioException);
+        }
+    }
+
+    void completeCheckpointStep(CheckpointJournal.Step checkpointStep, ParameterStore records) {
+        if(checkpointJournal != null) checkpointJournal.stepCompleted(checkpointStep, records);
+    }
+
+    void completeCheckpointRun() {
+        if(checkpointJournal != null) checkpointJournal.runCompleted();
+    }
+
+    void commitIncrementalWatermark() {
+        if(incrementalWatermark != null) incrementalWatermark.commit();
+    }
+
+    long pipeline(int collectBatchSize, int numberOfCollectWorkerThreads, int updateBatchSize, int numberOfUpdateWorkerThreads, int queueSize) {
+        List<String> collectionCypherQueries = readCollectionCypherQueries();
+        List<String> updateCypherQueries = readUpdateCypherQueries();
+        List<Map<String,Object>> partitions = readCollectionPartitions(collectionCypherQueries.get(0), COLLECT_PARTITIONS);
+        logger.info("Steps will be pipelined: each step streams its results to the next through a queue of up to {} batch{}.", queueSize, queueSize == 1 ? "" : "es");
+        return new BatchPipeline(this, queueSize).run(collectionCypherQueries, partitions, collectBatchSize, numberOfCollectWorkerThreads, updateCypherQueries, updateBatchSize, numberOfUpdateWorkerThreads);
+    }
+
+    List<QueryPreflight.StepProfile> preflight(int sampleSize) {
+        List<String> collectionCypherQueries = readCollectionCypherQueries();
+        List<String> updateCypherQueries = readUpdateCypherQueries();
+        List<Map<String,Object>> partitions = readCollectionPartitions(collectionCypherQueries.get(0), COLLECT_PARTITIONS);
+        logger.info("Preflight will check each step on a sample of up to {} parameter record{} in transactions that are rolled back", String.format("%,d", sampleSize), sampleSize == 1 ? "" : "s");
+        return new QueryPreflight(driver, NEO4J_DATABASE, runParameters, sampleSize, UPDATE_TARGET_LATENCY).run(collectionCypherQueries, partitions == null || partitions.isEmpty() ? new HashMap<String,Object>() : partitions.get(0), updateCypherQueries);
+    }
+
+    /**
+     * Sets the run configuration from the command line options. Returns false if processing should not go ahead,
+     * either because help was requested or the options could not be parsed.
+     */
+    static boolean configure(String... args) {
         CommandLineParser commandLineParser = new DefaultParser();
         Options options = new Options();
         options.addOption("uri", "neo4j-uri", true, "URI to the Neo4j instance or cluster. Defaults to " + NEO4J_URI);
         options.addOption("db", "neo4j-database", true, "Database to run queries against. Defaults to " + NEO4J_DATABASE);
         options.addOption("user", "neo4j-username", true, "Neo4j access credentials user name. Defaults to " + NEO4J_USER);
         options.addOption("pw", "neo4j-password", true, "Neo4j access credentials password. Defaults to " + NEO4J_PASSWORD);
-        options.addOption("cb", "collect-batch-size", true, "Number of records to be processed per batch in collection steps. Note that the initial collection step does not use batching. Defaults to " + COLLECT_BATCH_SIZE);
+        options.addOption("cb", "collect-batch-size", true, "Number of records to be processed per batch in collection steps. Note that the initial collection step does not use batching unless it is partitioned. Defaults to " + COLLECT_BATCH_SIZE);
         options.addOption("ct", "collect-threads", true, "Number of parallel threads used to process batches in collection steps. Defaults to " + COLLECT_THREAD_COUNT);
         options.addOption("cp", "collect-path", true, "Path to where the collect*.cypher files are. Defaults to \"" + COLLECT_FILES_PATH + "\" (current directory)");
+        options.addOption("cpn", "collect-partitions", true, "Number of partitions the initial collection step is split into. Partitions are streamed in parallel using the collection threads, in chunks of the collection batch size. The initial collection cypher must restrict its records to partition keys from $partitionStart (inclusive) to $partitionEnd (exclusive). The partition key should be an integer property with a range index, so that each partition is an index range seek, e.g. WHERE $partitionStart <= r.sequence < $partitionEnd with matching --collect-partition-bounds. Ranges of id(n) cannot use an index, so every partition would scan all candidate nodes. Defaults to " + COLLECT_PARTITIONS + " (no partitioning)");
+        options.addOption("cpb", "collect-partition-bounds", true, "Cypher returning the lowest and highest integer partition keys as its first two columns, e.g. MATCH (r:Request) RETURN min(r.sequence) AS minimum, max(r.sequence) AS maximum. The default only suits partitioning on id(n), which scans all nodes in every partition. Defaults to \"" + COLLECT_PARTITION_BOUNDS_CYPHER + "\"");
         options.addOption("ub", "update-batch-size", true, "Number of records to be processed per batch in update steps. Defaults to " + UPDATE_BATCH_SIZE);
         options.addOption("ut", "update-threads", true, "Number of parallel threads used to process batches in update steps. Defaults to " + UPDATE_THREAD_COUNT);
+        options.addOption("uk", "update-shard-key", true, "Name of the parameter record column to shard update batches on. Records with the same value are always processed by the same one of the update threads, which commits its batches one at a time, so that concurrent batches do not contend for the same nodes. Defaults to no sharding");
+        options.addOption("ua", "update-adaptive", true, "Adjust the update batch size and number of batches in flight as batches complete, growing them while batches commit within the target latency and shrinking them when batches are slow or need retries. The update batch size and threads are used as starting values. Defaults to " + UPDATE_ADAPTIVE);
+        options.addOption("ubmin", "update-batch-size-min", true, "Smallest batch size used by adaptive updates. Defaults to " + UPDATE_BATCH_SIZE_MIN);
+        options.addOption("ubmax", "update-batch-size-max", true, "Largest batch size used by adaptive updates. Defaults to " + UPDATE_BATCH_SIZE_MAX);
+        options.addOption("utmin", "update-threads-min", true, "Fewest batches in flight for adaptive updates. Defaults to " + UPDATE_THREAD_COUNT_MIN);
+        options.addOption("utmax", "update-threads-max", true, "Most batches in flight for adaptive updates. Defaults to " + UPDATE_THREAD_COUNT_MAX);
+        options.addOption("ul", "update-target-latency", true, "Commit latency in milliseconds that adaptive updates aim to keep each batch within. Defaults to " + UPDATE_TARGET_LATENCY);
         options.addOption("up", "update-path", true, "Path to where the update*.cypher files are. Defaults to \"" + UPDATE_FILES_PATH + "\" (current directory)");
         options.addOption("rp", "results-path", true, "Path to where the results of each step are written. Defaults to \"" + RESULT_FILES_PATH + "\" (current directory)");
-        options.addOption("save", "results-save", true, "Save the resulting records of each step as CSV files. Defaults to " + SAVE_RESULTS);
+        options.addOption("save", "results-save", true, "Save the resulting records of each step to a results file as its batches complete. Defaults to " + SAVE_RESULTS);
+        options.addOption("rf", "results-format", true, "Format of the results files: \"csv\", with lists, maps and graph values written as JSON within their cell, or \"ndjson\", with one JSON object per record. Defaults to \"" + RESULT_FILES_FORMAT + "\"");
+        options.addOption("rr", "results-report", true, "Write a JSON run report with the settings, batch latency percentiles, throughput, retries and Neo4j update counters of each step to the results path. Defaults to " + RUN_REPORT);
+        options.addOption("pi", "progress-interval", true, "Seconds between progress log lines for the steps in flight, with an estimate of the time remaining where the number of parameter records is known. 0 turns progress logging off. Defaults to " + PROGRESS_INTERVAL);
+        options.addOption("rz", "results-compress", true, "Gzip compress the results files. Defaults to " + RESULT_FILES_COMPRESS);
+        options.addOption("sh", "store-heap-size", true, "Megabytes of heap used to hold the parameter records passed between steps before further records are spilled to memory-mapped temp files. Defaults to " + STORE_HEAP_SIZE);
+        options.addOption("sp", "store-spill-path", true, "Path to where parameter records beyond the store heap size are spilled. Defaults to \"" + STORE_SPILL_PATH + "\"");
+        options.addOption("ckpt", "checkpoint", true, "Record completed steps and committed update batches in a checkpoint journal under the results path so that a failed run can be resumed. The result records of each completed step are saved in full, which takes an extra pass over them between steps. Not used in pipelined mode. Defaults to " + CHECKPOINT);
+        options.addOption("resume", "resume", true, "Resume from the checkpoint journal of a failed run, skipping completed steps and committed update batches whose cypher is unchanged. Defaults to " + RESUME);
+        options.addOption("pipe", "pipeline", true, "Stream the results of each step into the next step through a bounded queue so that all steps run concurrently and memory use does not grow with the number of records. Steps must not depend on the completion of earlier steps. Defaults to " + PIPELINE);
+        options.addOption("pq", "pipeline-queue-size", true, "Number of batches that may be queued between two pipelined steps before the earlier step waits. Defaults to " + PIPELINE_QUEUE_SIZE);
+        options.addOption("en", "engine", true, "Engine used to run parameter batches: \"threads\" runs each batch on a worker thread that waits for it to commit, and \"async\" runs batches through the driver's async API so that many transactions can be in flight on a few threads. The async engine shares one pool of sessions and threads across the run in place of the collect and update worker threads. Defaults to \"" + ENGINE + "\"");
+        options.addOption("etx", "engine-transactions", true, "Maximum number of transactions the async engine has in flight at once. Defaults to " + ENGINE_TRANSACTIONS);
+        options.addOption("eth", "engine-threads", true, "Number of threads the async engine uses to process the results of committed batches. Defaults to the number of available processors");
+        options.addOption("pf", "preflight", true, "Check the cypher of each step on a sample instead of processing, then exit. The initial collection step is explained, and each later step is profiled with the sample results of the step before it in a transaction that is rolled back. Database hits, result records and time per parameter record are reported, node scans and equality lookups on unindexed properties are flagged, and batch sizes that keep each batch within the update target latency are suggested. Defaults to " + PREFLIGHT);
+        options.addOption("pfs", "preflight-sample-size", true, "Number of parameter records the preflight samples from the initial collection step. Defaults to " + PREFLIGHT_SAMPLE_SIZE);
+        options.addOption("inc", "incremental-column", true, "Name of a column of the final step's result records, e.g. the latest timestamp or version of each record, whose highest value is kept as a high-water mark in a state file under the results path once a run completes. The mark from the last completed run is passed to every query as $since, so collection cypher can restrict itself to what has changed, e.g. WHERE $since IS NULL OR v.viewTime > $since. $since is null when there is no state yet. Defaults to no incremental state");
         options.addOption("h", "help", false, "Show this help message.");
         options.getOptions().stream().forEach(option -> {
             String[] longOptionNameParts = option.getLongOpt().split("-");
@@ -284,7 +809,7 @@ public class BatchUpdater implements AutoCloseable {
                 int terminalWidth = org.jline.terminal.TerminalBuilder.terminal().getWidth();
                 if(terminalWidth > 80) formatter.setWidth(terminalWidth);
                 formatter.printHelp("java -jar neo4j-batch-updater", "", options, "", true);
-                return;
+                return false;
             }
             NEO4J_URI = commandLine.getOptionValue("neo4j-uri", NEO4J_URI);
             NEO4J_DATABASE = commandLine.getOptionValue("neo4j-database", NEO4J_DATABASE);
@@ -293,20 +818,79 @@ public class BatchUpdater implements AutoCloseable {
             COLLECT_BATCH_SIZE = Integer.parseInt(commandLine.getOptionValue("collect-batch-size", Integer.toString(COLLECT_BATCH_SIZE)));
             COLLECT_THREAD_COUNT = Integer.parseInt(commandLine.getOptionValue("collect-threads", Integer.toString(COLLECT_THREAD_COUNT)));
             COLLECT_FILES_PATH = commandLine.getOptionValue("collect-path", COLLECT_FILES_PATH);
+            COLLECT_PARTITIONS = Integer.parseInt(commandLine.getOptionValue("collect-partitions", Integer.toString(COLLECT_PARTITIONS)));
+            COLLECT_PARTITION_BOUNDS_CYPHER = commandLine.getOptionValue("collect-partition-bounds", COLLECT_PARTITION_BOUNDS_CYPHER);
             UPDATE_BATCH_SIZE = Integer.parseInt(commandLine.getOptionValue("update-batch-size", Integer.toString(UPDATE_BATCH_SIZE)));
             UPDATE_THREAD_COUNT = Integer.parseInt(commandLine.getOptionValue("update-threads", Integer.toString(UPDATE_THREAD_COUNT)));
+            UPDATE_SHARD_KEY = commandLine.getOptionValue("update-shard-key", UPDATE_SHARD_KEY);
+            UPDATE_ADAPTIVE = Boolean.parseBoolean(commandLine.getOptionValue("update-adaptive", Boolean.toString(UPDATE_ADAPTIVE)));
+            UPDATE_BATCH_SIZE_MIN = Integer.parseInt(commandLine.getOptionValue("update-batch-size-min", Integer.toString(UPDATE_BATCH_SIZE_MIN)));
+            UPDATE_BATCH_SIZE_MAX = Integer.parseInt(commandLine.getOptionValue("update-batch-size-max", Integer.toString(UPDATE_BATCH_SIZE_MAX)));
+            UPDATE_THREAD_COUNT_MIN = Integer.parseInt(commandLine.getOptionValue("update-threads-min", Integer.toString(UPDATE_THREAD_COUNT_MIN)));
+            UPDATE_THREAD_COUNT_MAX = Integer.parseInt(commandLine.getOptionValue("update-threads-max", Integer.toString(UPDATE_THREAD_COUNT_MAX)));
+            UPDATE_TARGET_LATENCY = Long.parseLong(commandLine.getOptionValue("update-target-latency", Long.toString(UPDATE_TARGET_LATENCY)));
             UPDATE_FILES_PATH = commandLine.getOptionValue("update-path", UPDATE_FILES_PATH);
             RESULT_FILES_PATH = commandLine.getOptionValue("results-path", RESULT_FILES_PATH);
             SAVE_RESULTS = Boolean.parseBoolean(commandLine.getOptionValue("results-save", Boolean.toString(SAVE_RESULTS)));
+            RESULT_FILES_FORMAT = commandLine.getOptionValue("results-format", RESULT_FILES_FORMAT);
+            if(!RESULT_FILES_FORMAT.equals("csv") && !RESULT_FILES_FORMAT.equals("ndjson")) throw new ParseException("Unknown results format \"" + RESULT_FILES_FORMAT + "\". Use \"csv\" or \"ndjson\".");
+            RESULT_FILES_COMPRESS = Boolean.parseBoolean(commandLine.getOptionValue("results-compress", Boolean.toString(RESULT_FILES_COMPRESS)));
+            RUN_REPORT = Boolean.parseBoolean(commandLine.getOptionValue("results-report", Boolean.toString(RUN_REPORT)));
+            PROGRESS_INTERVAL = Long.parseLong(commandLine.getOptionValue("progress-interval", Long.toString(PROGRESS_INTERVAL)));
+            STORE_HEAP_SIZE = Integer.parseInt(commandLine.getOptionValue("store-heap-size", Integer.toString(STORE_HEAP_SIZE)));
+            STORE_SPILL_PATH = commandLine.getOptionValue("store-spill-path", STORE_SPILL_PATH);
+            CHECKPOINT = Boolean.parseBoolean(commandLine.getOptionValue("checkpoint", Boolean.toString(CHECKPOINT)));
+            RESUME = Boolean.parseBoolean(commandLine.getOptionValue("resume", Boolean.toString(RESUME)));
+            PIPELINE = Boolean.parseBoolean(commandLine.getOptionValue("pipeline", Boolean.toString(PIPELINE)));
+            ENGINE = commandLine.getOptionValue("engine", ENGINE);
+            if(!ENGINE.equals("threads") && !ENGINE.equals("async")) throw new ParseException("Unknown engine \"" + ENGINE + "\". Use \"threads\" or \"async\".");
+            ENGINE_TRANSACTIONS = Integer.parseInt(commandLine.getOptionValue("engine-transactions", Integer.toString(ENGINE_TRANSACTIONS)));
+            ENGINE_THREADS = Integer.parseInt(commandLine.getOptionValue("engine-threads", Integer.toString(ENGINE_THREADS)));
+            PIPELINE_QUEUE_SIZE = Integer.parseInt(commandLine.getOptionValue("pipeline-queue-size", Integer.toString(PIPELINE_QUEUE_SIZE)));
+            PREFLIGHT = Boolean.parseBoolean(commandLine.getOptionValue("preflight", Boolean.toString(PREFLIGHT)));
+            PREFLIGHT_SAMPLE_SIZE = Integer.parseInt(commandLine.getOptionValue("preflight-sample-size", Integer.toString(PREFLIGHT_SAMPLE_SIZE)));
+            INCREMENTAL_COLUMN = commandLine.getOptionValue("incremental-column", INCREMENTAL_COLUMN);
         }
         catch (ParseException | IOException | NumberFormatException exception) {
             logger.error("Unabled to parse command line options due to the following error. Processing will be aborted.\n{}\n{}", exception.getClass().getName(), exception.getMessage());
-            return;
+            return false;
         }
+        return true;
+    }
+
+    public static void main(String... args) {
+        Configurator.setLevel(logger, LOG_LEVEL);
+        if(!configure(args)) return;
         logger.info("Starting Neo4j Batch Update process");
         try (var batchUpdater = new BatchUpdater(NEO4J_URI, NEO4J_USER, NEO4J_PASSWORD)) {
-            List<org.neo4j.driver.Record> parameterRecords = batchUpdater.collect(COLLECT_BATCH_SIZE, COLLECT_THREAD_COUNT);
-            batchUpdater.update(parameterRecords, UPDATE_BATCH_SIZE, UPDATE_THREAD_COUNT);
+            if(PREFLIGHT) {
+                batchUpdater.preflight(PREFLIGHT_SAMPLE_SIZE);
+                logger.info("Completed Neo4j Batch Update preflight. Nothing was committed.");
+                return;
+            }
+            if(PIPELINE) {
+                if(CHECKPOINT) logger.warn("Checkpointing is not supported in pipelined mode. No checkpoint journal will be kept.");
+                if(RESUME) logger.warn("Resuming is not supported in pipelined mode. All steps will be processed.");
+                if(UPDATE_SHARD_KEY != null) logger.warn("Sharding is not supported in pipelined mode. Update batches will not be sharded.");
+                if(UPDATE_ADAPTIVE) logger.warn("Adaptive batching is not supported in pipelined mode. Update batches will use the update batch size and threads.");
+                batchUpdater.pipeline(COLLECT_BATCH_SIZE, COLLECT_THREAD_COUNT, UPDATE_BATCH_SIZE, UPDATE_THREAD_COUNT, PIPELINE_QUEUE_SIZE);
+            }
+            else {
+                if(CHECKPOINT) batchUpdater.openCheckpointJournal(RESUME);
+                else if(RESUME) logger.warn("Resuming requires checkpointing to be enabled. All steps will be processed.");
+                try (ParameterStore parameterRecords = batchUpdater.collect(COLLECT_BATCH_SIZE, COLLECT_THREAD_COUNT);
+                     ParameterStore resultRecords = batchUpdater.update(parameterRecords, UPDATE_BATCH_SIZE, UPDATE_THREAD_COUNT)) {
+                    logger.info("Retrieved {} result record{} from the final update step", String.format("%,d", resultRecords.size()), resultRecords.size() == 1 ? "" : "s");
+                    if(batchUpdater.incrementalWatermark() != null) batchUpdater.incrementalWatermark().observe(resultRecords);
+                }
+                batchUpdater.completeCheckpointRun();
+            }
+            batchUpdater.commitIncrementalWatermark();
+            batchUpdater.runMetrics().runCompleted();
+        }
+        catch (RuntimeException exception) {
+            logger.error("Processing was aborted due to the following error.{}\n{}\n{}", CHECKPOINT && !PIPELINE && !PREFLIGHT ? " Completed steps and batches can be skipped by rerunning with --checkpoint true --resume true." : "", exception.getClass().getName(), exception.getMessage());
+            throw exception;
         }
         logger.info("Completed Neo4j Batch Update process");
     }
@@ -0,0 +1,262 @@
+package com.neo4j;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Append-only record of the progress of a run, kept in a checkpoint directory under the results path. The journal
+ * notes each completed collect and update step, whose result records are saved alongside it, and each committed
+ * update batch, whose result records are appended to a per-step batch file before the batch is journaled.
+ * <p>
+ * Steps are identified by their name and a key derived from their cypher and the keys of all earlier steps, so a
+ * resumed run only reuses the saved output of completed steps, and skips the rows of committed batches, where neither
+ * the step nor anything before it has changed. A batch that committed just before a failure but was not yet journaled
+ * will be applied again, so update cypher should be safe to repeat.
+ * <p>
+ * Nodes, relationships and paths cannot be saved, so a step whose result records hold them is not checkpointed and
+ * is processed again when the run is resumed.
+ */
+class CheckpointJournal implements AutoCloseable {
+
+    private static final Logger logger = LogManager.getLogger(CheckpointJournal.class);
+    private static final String JOURNAL_FILE_NAME = "journal.log";
+    private static final int FRAME_HEADER_LENGTH = 12;
+
+    private final Path directory;
+    private final BufferedWriter journalWriter;
+    private final Set<String> completedSteps = new HashSet<String>();
+    private final Map<String,BitSet> committedRows = new HashMap<String,BitSet>();
+    private final Map<String,DataOutputStream> batchOutputs = new HashMap<String,DataOutputStream>();
+    private final Set<String> unsavableSteps = new HashSet<String>();
+
+    record Step(String name, String key) {
+
+        Step next(String name, String cypherQuery) {
+            try {
+                MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+                messageDigest.update(key.getBytes(StandardCharsets.UTF_8));
+                messageDigest.update((byte) 0);
+                messageDigest.update(cypherQuery.getBytes(StandardCharsets.UTF_8));
+                return new Step(name, HexFormat.of().formatHex(messageDigest.digest(), 0, 8));
+            }
+            catch (NoSuchAlgorithmException noSuchAlgorithmException) {
+                throw new IllegalStateException(noSuchAlgorithmException);
+            }
+        }
+
+        String id() {
+            return name + "-" + key;
+        }
+    }
+
+    static final Step START = new Step("start", "");
+
+    CheckpointJournal(Path directory, boolean resume) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        Path journalFile = directory.resolve(JOURNAL_FILE_NAME);
+        boolean resumed = resume && load(journalFile);
+        if(!resumed) {
+            clear();
+        }
+        journalWriter = Files.newBufferedWriter(journalFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        if(!resumed) append("run");
+    }
+
+    private boolean load(Path journalFile) throws IOException {
+        if(!Files.exists(journalFile)) {
+            logger.info("No checkpoint journal found at {}. Processing will start from the beginning.", journalFile);
+            return false;
+        }
+        List<String> lines = Files.readAllLines(journalFile, StandardCharsets.UTF_8);
+        if(lines.isEmpty() || lines.get(lines.size()-1).equals("run complete")) {
+            logger.info("The checkpoint journal at {} is for a run that completed. Processing will start from the beginning.", journalFile);
+            return false;
+        }
+        for(String line : lines.subList(1, lines.size())) {
+            String[] parts = line.split(" ");
+            if(parts.length == 2 && parts[1].equals("complete")) {
+                completedSteps.add(parts[0]);
+            }
+            else if(parts.length == 4 && parts[1].equals("batch")) {
+                committedRows.computeIfAbsent(parts[0], step -> new BitSet()).set(Integer.parseInt(parts[2]), Integer.parseInt(parts[3]));
+            }
+        }
+        logger.info("Resuming from checkpoint journal at {} with {} completed step{} and {} partially completed step{}", journalFile, completedSteps.size(), completedSteps.size() == 1 ? "" : "s", committedRows.size(), committedRows.size() == 1 ? "" : "s");
+        return true;
+    }
+
+    private void clear() throws IOException {
+        try (var files = Files.list(directory)) {
+            for(Path file : files.filter(file -> file.getFileName().toString().equals(JOURNAL_FILE_NAME) || file.getFileName().toString().matches("^.*\\.(store|store\\.tmp|batches)$")).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private synchronized void append(String line) throws IOException {
+        journalWriter.write(line);
+        journalWriter.newLine();
+        journalWriter.flush();
+    }
+
+    boolean isStepCompleted(Step step) {
+        return completedSteps.contains(step.id());
+    }
+
+    /**
+     * Appends the saved result records of a completed step to {@code records}.
+     */
+    void loadStep(Step step, ParameterStore records) {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(directory.resolve(step.id() + ".store"))))) {
+            records.readFrom(input);
+        }
+        catch (IOException ioException) {
+            throw new UncheckedIOException(ioException);
+        }
+        logger.info("Loaded {} result record{} of step {} from checkpoint", String.format("%,d", records.size()), records.size() == 1 ? "" : "s", step.name());
+    }
+
+    void stepCompleted(Step step, ParameterStore records) {
+        String entityColumn = records.entityColumn();
+        if(entityColumn != null) {
+            logUnsavableStep(step, entityColumn);
+            return;
+        }
+        Path storeFile = directory.resolve(step.id() + ".store");
+        Path temporaryStoreFile = directory.resolve(step.id() + ".store.tmp");
+        try {
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryStoreFile)))) {
+                records.writeTo(output);
+            }
+            Files.move(temporaryStoreFile, storeFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            synchronized(this) {
+                DataOutputStream batchOutput = batchOutputs.remove(step.id());
+                if(batchOutput != null) batchOutput.close();
+            }
+            Files.deleteIfExists(directory.resolve(step.id() + ".batches"));
+            append(step.id() + " complete");
+        }
+        catch (IOException ioException) {
+            throw new UncheckedIOException(ioException);
+        }
+    }
+
+    /**
+     * Returns the rows of the given step whose batches were committed by an earlier run, and appends the result
+     * records of those batches to {@code records}. Anything after the last journaled batch, which is a frame cut short
+     * by the failure or written by a batch that was not yet journaled, is truncated so that new batches are appended
+     * after a complete frame.
+     */
+    BitSet loadCommittedBatches(Step step, ParameterStore records) {
+        BitSet committed = committedRows.getOrDefault(step.id(), new BitSet());
+        Path batchFile = directory.resolve(step.id() + ".batches");
+        BitSet loaded = new BitSet();
+        if(!Files.exists(batchFile)) return loaded;
+        try {
+            long fileLength = Files.size(batchFile);
+            long journaledLength = 0;
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(batchFile)))) {
+                while(fileLength - journaledLength >= FRAME_HEADER_LENGTH) {
+                    int fromRow = input.readInt();
+                    int toRow = input.readInt();
+                    int blockLength = input.readInt();
+                    if(fromRow < 0 || toRow <= fromRow || blockLength < 0 || blockLength > fileLength - journaledLength - FRAME_HEADER_LENGTH) break;
+                    if(!committed.get(fromRow) || committed.nextClearBit(fromRow) < toRow) break;
+                    byte[] block = new byte[blockLength];
+                    input.readFully(block);
+                    records.readFrom(new DataInputStream(new ByteArrayInputStream(block)));
+                    loaded.set(fromRow, toRow);
+                    journaledLength += FRAME_HEADER_LENGTH + blockLength;
+                }
+            }
+            if(journaledLength < fileLength) {
+                try (FileChannel channel = FileChannel.open(batchFile, StandardOpenOption.WRITE)) {
+                    channel.truncate(journaledLength);
+                }
+                logger.info("Discarded {} byte{} after the last journaled batch of step {}", String.format("%,d", fileLength - journaledLength), fileLength - journaledLength == 1 ? "" : "s", step.name());
+            }
+        }
+        catch (IOException ioException) {
+            throw new UncheckedIOException(ioException);
+        }
+        logger.info("Skipping {} parameter record{} of step {} in batches committed before the checkpoint", String.format("%,d", loaded.cardinality()), loaded.cardinality() == 1 ? "" : "s", step.name());
+        return loaded;
+    }
+
+    synchronized void batchCommitted(Step step, int fromRow, int toRow, List<org.neo4j.driver.Record> batchResults) {
+        if(unsavableSteps.contains(step.id())) return;
+        String entityColumn = ParameterStore.entityColumn(batchResults);
+        if(entityColumn != null) {
+            logUnsavableStep(step, entityColumn);
+            return;
+        }
+        try {
+            DataOutputStream batchOutput = batchOutputs.get(step.id());
+            if(batchOutput == null) {
+                batchOutput = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(directory.resolve(step.id() + ".batches"), StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+                batchOutputs.put(step.id(), batchOutput);
+            }
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            ParameterStore.writeRecords(new DataOutputStream(block), batchResults);
+            batchOutput.writeInt(fromRow);
+            batchOutput.writeInt(toRow);
+            batchOutput.writeInt(block.size());
+            block.writeTo(batchOutput);
+            batchOutput.flush();
+            append(step.id() + " batch " + fromRow + " " + toRow);
+        }
+        catch (IOException ioException) {
+            throw new UncheckedIOException(ioException);
+        }
+    }
+
+    private synchronized void logUnsavableStep(Step step, String entityColumn) {
+        if(unsavableSteps.add(step.id())) {
+            logger.warn("Step {} will not be checkpointed because its {} column holds nodes, relationships or paths, which cannot be saved. It will be processed again if the run is resumed.", step.name(), entityColumn);
+        }
+    }
+
+    void runCompleted() {
+        try {
+            append("run complete");
+        }
+        catch (IOException ioException) {
+            throw new UncheckedIOException(ioException);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for(DataOutputStream batchOutput : batchOutputs.values()) {
+            batchOutput.close();
+        }
+        batchOutputs.clear();
+        journalWriter.close();
+    }
+}
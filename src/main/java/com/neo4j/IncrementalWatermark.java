@@ -0,0 +1,137 @@
+package com.neo4j;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * High-water mark of one column of the final step's result records, kept in a state file under the results path so
+ * that the next run can process only what has changed since. The mark loaded at the start of a run is passed to every
+ * query as {@code $since}, and is null when there is no state yet. The highest value seen during the run replaces it
+ * only once the run has completed, so a failed or resumed run uses the same mark as the run it follows.
+ */
+class IncrementalWatermark {
+
+    private static final Logger logger = LogManager.getLogger(IncrementalWatermark.class);
+
+    private final Path stateFile;
+    private final String column;
+    private final Object since;
+    private Object highest;
+
+    IncrementalWatermark(Path stateFile, String column) {
+        this.stateFile = stateFile;
+        this.column = column;
+        this.since = load();
+    }
+
+    private Object load() {
+        if(!Files.exists(stateFile)) {
+            logger.info("No incremental state found at {}. $since will be null and all records will be processed.", stateFile);
+            return null;
+        }
+        Properties state = new Properties();
+        try (Reader reader = Files.newBufferedReader(stateFile, StandardCharsets.UTF_8)) {
+            state.load(reader);
+        }
+        catch (IOException ioException) {
+            throw new UncheckedIOException(ioException);
+        }
+        if(!column.equals(state.getProperty("column"))) {
+            logger.warn("The incremental state at {} is for column {}, not {}. $since will be null and all records will be processed.", stateFile, state.getProperty("column"), column);
+            return null;
+        }
+        Object mark = parse(state.getProperty("type"), state.getProperty("value"));
+        logger.info("Incremental run will process records since the {} of {} from the last completed run ({})", column, mark, state.getProperty("updated"));
+        return mark;
+    }
+
+    Object since() {
+        return since;
+    }
+
+    synchronized void observe(List<org.neo4j.driver.Record> records) {
+        for(org.neo4j.driver.Record record : records) {
+            if(!record.containsKey(column)) throw new IllegalStateException("The final step's result records have no " + column + " column to keep the incremental high-water mark of");
+            observe(record.get(column).asObject());
+        }
+    }
+
+    synchronized void observe(ParameterStore records) {
+        int columnIndex = records.keys().indexOf(column);
+        if(columnIndex == -1 && records.size() > 0) throw new IllegalStateException("The final step's result records have no " + column + " column to keep the incremental high-water mark of");
+        for(int row = 0; row < records.size(); row++) {
+            observe(records.value(row, columnIndex));
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void observe(Object value) {
+        if(value == null) return;
+        String typeName = typeName(value);
+        if(highest != null && highest.getClass() != value.getClass()) throw new IllegalStateException("The " + column + " column mixes " + typeName(highest) + " and " + typeName + " values so it cannot be used as an incremental high-water mark");
+        if(highest == null || ((Comparable) value).compareTo(highest) > 0) highest = value;
+    }
+
+    /**
+     * Saves the highest value seen as the mark for the next run, leaving the state unchanged if there were no values.
+     */
+    synchronized void commit() {
+        if(highest == null) {
+            logger.info("The final step returned no {} values so the incremental high-water mark is unchanged", column);
+            return;
+        }
+        Properties state = new Properties();
+        state.setProperty("column", column);
+        state.setProperty("type", typeName(highest));
+        state.setProperty("value", highest.toString());
+        state.setProperty("updated", ZonedDateTime.now().toString());
+        Path temporaryStateFile = stateFile.resolveSibling(stateFile.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(stateFile.toAbsolutePath().getParent());
+            try (Writer writer = Files.newBufferedWriter(temporaryStateFile, StandardCharsets.UTF_8)) {
+                state.store(writer, "Neo4j Batch Update incremental state");
+            }
+            Files.move(temporaryStateFile, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException ioException) {
+            throw new UncheckedIOException(ioException);
+        }
+        logger.info("Saved the incremental high-water mark {} of {} to {}", highest, column, stateFile);
+    }
+
+    private static String typeName(Object value) {
+        if(value instanceof Long) return "INTEGER";
+        if(value instanceof Double) return "FLOAT";
+        if(value instanceof String) return "STRING";
+        if(value instanceof LocalDate) return "DATE";
+        if(value instanceof LocalDateTime) return "LOCAL_DATE_TIME";
+        if(value instanceof ZonedDateTime) return "DATE_TIME";
+        throw new IllegalStateException("Values of type " + value.getClass().getSimpleName() + " cannot be used as an incremental high-water mark. Use an integer, float, string, date, local datetime or datetime column.");
+    }
+
+    private static Object parse(String typeName, String value) {
+        return switch(typeName) {
+            case "INTEGER" -> Long.parseLong(value);
+            case "FLOAT" -> Double.parseDouble(value);
+            case "STRING" -> value;
+            case "DATE" -> LocalDate.parse(value);
+            case "LOCAL_DATE_TIME" -> LocalDateTime.parse(value);
+            case "DATE_TIME" -> ZonedDateTime.parse(value);
+            default -> throw new IllegalStateException("Unknown incremental high-water mark type " + typeName);
+        };
+    }
+}
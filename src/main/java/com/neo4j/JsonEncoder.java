@@ -0,0 +1,133 @@
+package com.neo4j;
+
+import org.neo4j.driver.Value;
+import org.neo4j.driver.types.Node;
+import org.neo4j.driver.types.Path;
+import org.neo4j.driver.types.Point;
+import org.neo4j.driver.types.Relationship;
+
+import java.util.Base64;
+import java.util.Map;
+
+/**
+ * Encodes result values as JSON. Lists and maps keep their structure, nodes, relationships, paths and points become
+ * objects of their parts, and values JSON has no type for (temporal values, durations, byte arrays and non-finite
+ * floats) become strings.
+ */
+final class JsonEncoder {
+
+    private JsonEncoder() {
+    }
+
+    static String encode(Object value) {
+        StringBuilder json = new StringBuilder();
+        append(json, value);
+        return json.toString();
+    }
+
+    static void append(StringBuilder json, Object value) {
+        if(value == null) {
+            json.append("null");
+        }
+        else if(value instanceof Value driverValue) {
+            append(json, driverValue.asObject());
+        }
+        else if(value instanceof Boolean || value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            json.append(value);
+        }
+        else if(value instanceof Double || value instanceof Float) {
+            double number = ((Number) value).doubleValue();
+            if(Double.isFinite(number)) json.append(value);
+            else appendString(json, value.toString());
+        }
+        else if(value instanceof Map<?,?> map) {
+            json.append('{');
+            boolean first = true;
+            for(Map.Entry<?,?> entry : map.entrySet()) {
+                if(!first) json.append(',');
+                first = false;
+                appendString(json, String.valueOf(entry.getKey()));
+                json.append(':');
+                append(json, entry.getValue());
+            }
+            json.append('}');
+        }
+        else if(value instanceof Iterable<?> iterable && !(value instanceof Path)) {
+            json.append('[');
+            boolean first = true;
+            for(Object element : iterable) {
+                if(!first) json.append(',');
+                first = false;
+                append(json, element);
+            }
+            json.append(']');
+        }
+        else if(value instanceof Node node) {
+            json.append("{\"elementId\":");
+            appendString(json, node.elementId());
+            json.append(",\"labels\":");
+            append(json, node.labels());
+            json.append(",\"properties\":");
+            append(json, node.asMap());
+            json.append('}');
+        }
+        else if(value instanceof Relationship relationship) {
+            json.append("{\"elementId\":");
+            appendString(json, relationship.elementId());
+            json.append(",\"type\":");
+            appendString(json, relationship.type());
+            json.append(",\"startElementId\":");
+            appendString(json, relationship.startNodeElementId());
+            json.append(",\"endElementId\":");
+            appendString(json, relationship.endNodeElementId());
+            json.append(",\"properties\":");
+            append(json, relationship.asMap());
+            json.append('}');
+        }
+        else if(value instanceof Path path) {
+            json.append("{\"nodes\":");
+            append(json, path.nodes());
+            json.append(",\"relationships\":");
+            append(json, path.relationships());
+            json.append('}');
+        }
+        else if(value instanceof Point point) {
+            json.append("{\"srid\":").append(point.srid()).append(",\"x\":");
+            append(json, point.x());
+            json.append(",\"y\":");
+            append(json, point.y());
+            if(!Double.isNaN(point.z())) {
+                json.append(",\"z\":");
+                append(json, point.z());
+            }
+            json.append('}');
+        }
+        else if(value instanceof byte[] bytes) {
+            appendString(json, Base64.getEncoder().encodeToString(bytes));
+        }
+        else {
+            appendString(json, value.toString());
+        }
+    }
+
+    static void appendString(StringBuilder json, String string) {
+        json.append('"');
+        for(int index = 0; index < string.length(); index++) {
+            char character = string.charAt(index);
+            switch(character) {
+                case '"' -> json.append("\\\"");
+                case '\\' -> json.append("\\\\");
+                case '\n' -> json.append("\\n");
+                case '\r' -> json.append("\\r");
+                case '\t' -> json.append("\\t");
+                case '\b' -> json.append("\\b");
+                case '\f' -> json.append("\\f");
+                default -> {
+                    if(character < 0x20) json.append(String.format("\\u%04x", (int) character));
+                    else json.append(character);
+                }
+            }
+        }
+        json.append('"');
+    }
+}
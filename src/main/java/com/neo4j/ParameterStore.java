@@ -0,0 +1,739 @@
+package com.neo4j;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.neo4j.driver.Values;
+import org.neo4j.driver.types.Entity;
+import org.neo4j.driver.types.IsoDuration;
+import org.neo4j.driver.types.Point;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds the records passed between steps in columns rather than as driver records. Integer columns are kept as
+ * packed longs, every other column as a compact binary encoding in which repeated strings are replaced by dictionary
+ * codes. Column data lives in fixed size segments handed out by a {@link SegmentAllocator}, which switches from heap
+ * segments to memory-mapped temp file segments once its heap budget is used up.
+ * <p>
+ * Records may be appended by several worker threads, but a store is only read once all appends are complete.
+ */
+class ParameterStore implements AutoCloseable {
+
+    static final int SEGMENT_SIZE = 1 << 20;
+    private static final int DICTIONARY_LIMIT = 1 << 16;
+
+    private static final byte NULL = 0;
+    private static final byte FALSE = 1;
+    private static final byte TRUE = 2;
+    private static final byte INTEGER = 3;
+    private static final byte FLOAT = 4;
+    private static final byte DICTIONARY_STRING = 5;
+    private static final byte STRING = 6;
+    private static final byte LIST = 7;
+    private static final byte MAP = 8;
+    private static final byte BYTES = 9;
+    private static final byte DATE = 10;
+    private static final byte TIME = 11;
+    private static final byte LOCAL_TIME = 12;
+    private static final byte LOCAL_DATE_TIME = 13;
+    private static final byte DATE_TIME = 14;
+    private static final byte DURATION = 15;
+    private static final byte POINT = 16;
+    private static final byte OBJECT = 17;
+
+    private final SegmentAllocator allocator;
+    private List<String> keys = List.of();
+    private Column[] columns = new Column[0];
+    private int size;
+    private final Map<String,Integer> dictionaryCodes = new HashMap<String,Integer>();
+    private final List<String> dictionary = new ArrayList<String>();
+    private final List<Object> objects = new ArrayList<Object>();
+
+    ParameterStore(SegmentAllocator allocator) {
+        this.allocator = allocator;
+    }
+
+    List<String> keys() {
+        return keys;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized void append(List<org.neo4j.driver.Record> records) {
+        for(org.neo4j.driver.Record record : records) {
+            appendRow(record.keys(), recordValues(record));
+        }
+    }
+
+    private void appendRow(List<String> rowKeys, Object[] values) {
+        if(size == 0 && columns.length == 0) {
+            keys = List.copyOf(rowKeys);
+            columns = new Column[keys.size()];
+            for(int columnIndex = 0; columnIndex < columns.length; columnIndex++) {
+                columns[columnIndex] = values[columnIndex] == null || values[columnIndex] instanceof Long ? new LongColumn() : new EncodedColumn();
+            }
+        }
+        for(int columnIndex = 0; columnIndex < columns.length; columnIndex++) {
+            if(columns[columnIndex] instanceof LongColumn longColumn && values[columnIndex] != null && !(values[columnIndex] instanceof Long)) {
+                columns[columnIndex] = longColumn.toEncodedColumn();
+            }
+            columns[columnIndex].append(values[columnIndex]);
+        }
+        size++;
+    }
+
+    /**
+     * Returns the name of the first column holding a node, relationship or path, or null if there is none.
+     */
+    synchronized String entityColumn() {
+        // Entities can only be held as objects, so a store without any needs no scan.
+        if(objects.isEmpty()) return null;
+        for(int row = 0; row < size; row++) {
+            for(int columnIndex = 0; columnIndex < columns.length; columnIndex++) {
+                if(containsEntity(columns[columnIndex].get(row))) return keys.get(columnIndex);
+            }
+        }
+        return null;
+    }
+
+    static String entityColumn(List<org.neo4j.driver.Record> records) {
+        for(org.neo4j.driver.Record record : records) {
+            for(int columnIndex = 0; columnIndex < record.size(); columnIndex++) {
+                if(containsEntity(record.get(columnIndex).asObject())) return record.keys().get(columnIndex);
+            }
+        }
+        return null;
+    }
+
+    private static boolean containsEntity(Object value) {
+        if(value instanceof Entity || value instanceof org.neo4j.driver.types.Path) return true;
+        if(value instanceof List<?> listValue) return listValue.stream().anyMatch(ParameterStore::containsEntity);
+        if(value instanceof Map<?,?> mapValue) return mapValue.values().stream().anyMatch(ParameterStore::containsEntity);
+        return false;
+    }
+
+    private static Object[] recordValues(org.neo4j.driver.Record record) {
+        Object[] values = new Object[record.size()];
+        for(int columnIndex = 0; columnIndex < values.length; columnIndex++) {
+            values[columnIndex] = record.get(columnIndex).asObject();
+        }
+        return values;
+    }
+
+    /**
+     * Writes all rows as a self-contained block that {@link #readFrom(DataInputStream)} can append to another store.
+     * Strings are written inline, and values without a parameter representation (nodes, relationships and paths) are
+     * written as their string form, so callers that need the rows back unchanged should check {@link #entityColumn()}
+     * first.
+     */
+    synchronized void writeTo(DataOutputStream output) throws IOException {
+        writeBlockHeader(output, keys, size);
+        Encoder encoder = new Encoder(null, null, null);
+        for(int row = 0; row < size; row++) {
+            encoder.reset();
+            for(Column column : columns) {
+                encoder.write(column.get(row));
+            }
+            writeBlockRow(output, encoder);
+        }
+    }
+
+    static void writeRecords(DataOutputStream output, List<org.neo4j.driver.Record> records) throws IOException {
+        writeBlockHeader(output, records.isEmpty() ? List.of() : records.get(0).keys(), records.size());
+        Encoder encoder = new Encoder(null, null, null);
+        for(org.neo4j.driver.Record record : records) {
+            encoder.reset();
+            for(Object value : recordValues(record)) {
+                encoder.write(value);
+            }
+            writeBlockRow(output, encoder);
+        }
+    }
+
+    private static void writeBlockHeader(DataOutputStream output, List<String> keys, int rowCount) throws IOException {
+        output.writeInt(keys.size());
+        for(String key : keys) {
+            output.writeUTF(key);
+        }
+        output.writeInt(rowCount);
+    }
+
+    private static void writeBlockRow(DataOutputStream output, Encoder encoder) throws IOException {
+        output.writeInt(encoder.length);
+        output.write(encoder.bytes, 0, encoder.length);
+    }
+
+    synchronized void readFrom(DataInputStream input) throws IOException {
+        List<String> blockKeys = new ArrayList<String>();
+        int keyCount = input.readInt();
+        for(int keyIndex = 0; keyIndex < keyCount; keyIndex++) {
+            blockKeys.add(input.readUTF());
+        }
+        int rowCount = input.readInt();
+        for(int row = 0; row < rowCount; row++) {
+            byte[] encodedRow = new byte[input.readInt()];
+            input.readFully(encodedRow);
+            ArrayDecoder decoder = new ArrayDecoder(encodedRow);
+            Object[] values = new Object[keyCount];
+            for(int columnIndex = 0; columnIndex < keyCount; columnIndex++) {
+                values[columnIndex] = decoder.read();
+            }
+            appendRow(blockKeys, values);
+        }
+    }
+
+    /**
+     * Builds the parameter maps for rows {@code fromRow} (inclusive) to {@code toRow} (exclusive), as sent in the
+     * {@code $batch} parameter.
+     */
+    List<Map<String,Object>> rows(int fromRow, int toRow) {
+        return rows(null, fromRow, toRow);
+    }
+
+    /**
+     * Builds the parameter maps for the rows at positions {@code fromPosition} (inclusive) to {@code toPosition}
+     * (exclusive) of {@code rowOrder}, or of the store itself if {@code rowOrder} is null.
+     */
+    List<Map<String,Object>> rows(int[] rowOrder, int fromPosition, int toPosition) {
+        List<Map<String,Object>> rows = new ArrayList<Map<String,Object>>(toPosition - fromPosition);
+        for(int position = fromPosition; position < toPosition; position++) {
+            int row = rowOrder == null ? position : rowOrder[position];
+            Map<String,Object> values = new LinkedHashMap<String,Object>(keys.size() * 2);
+            for(int columnIndex = 0; columnIndex < columns.length; columnIndex++) {
+                values.put(keys.get(columnIndex), columns[columnIndex].get(row));
+            }
+            rows.add(values);
+        }
+        return rows;
+    }
+
+    Object value(int row, int columnIndex) {
+        return columns[columnIndex].get(row);
+    }
+
+    List<Object> values(int row) {
+        List<Object> values = new ArrayList<Object>(columns.length);
+        for(Column column : columns) {
+            values.add(column.get(row));
+        }
+        return values;
+    }
+
+    @Override
+    public synchronized void close() {
+        for(Column column : columns) {
+            column.release();
+        }
+        columns = new Column[0];
+        dictionaryCodes.clear();
+        dictionary.clear();
+        objects.clear();
+    }
+
+    private interface Column {
+        void append(Object value);
+        Object get(int row);
+        void release();
+    }
+
+    private class LongColumn implements Column {
+
+        private final SegmentedBuffer values = new SegmentedBuffer(allocator);
+        private final BitSet nulls = new BitSet();
+        private int rows;
+
+        @Override
+        public void append(Object value) {
+            if(value == null) nulls.set(rows);
+            values.appendLong(value == null ? 0 : (Long) value);
+            rows++;
+        }
+
+        @Override
+        public Object get(int row) {
+            return nulls.get(row) ? null : values.getLong((long) row * Long.BYTES);
+        }
+
+        EncodedColumn toEncodedColumn() {
+            EncodedColumn encodedColumn = new EncodedColumn();
+            for(int row = 0; row < rows; row++) {
+                encodedColumn.append(get(row));
+            }
+            release();
+            return encodedColumn;
+        }
+
+        @Override
+        public void release() {
+            values.release();
+        }
+    }
+
+    private class EncodedColumn implements Column {
+
+        private final SegmentedBuffer offsets = new SegmentedBuffer(allocator);
+        private final SegmentedBuffer data = new SegmentedBuffer(allocator);
+        private final Encoder encoder = new Encoder(dictionaryCodes, dictionary, objects);
+
+        @Override
+        public void append(Object value) {
+            offsets.appendLong(data.length());
+            encoder.reset();
+            encoder.write(value);
+            data.append(encoder.bytes, encoder.length);
+        }
+
+        @Override
+        public Object get(int row) {
+            return new SegmentedDecoder(data, offsets.getLong((long) row * Long.BYTES)).read();
+        }
+
+        @Override
+        public void release() {
+            offsets.release();
+            data.release();
+        }
+    }
+
+    /**
+     * Encodes values into a reusable byte array. Without a dictionary, strings are always written inline and values
+     * that cannot be encoded are written as their string form instead of being kept on the heap.
+     */
+    private static class Encoder {
+
+        private final Map<String,Integer> dictionaryCodes;
+        private final List<String> dictionary;
+        private final List<Object> objects;
+        private byte[] bytes = new byte[64];
+        private int length;
+
+        Encoder(Map<String,Integer> dictionaryCodes, List<String> dictionary, List<Object> objects) {
+            this.dictionaryCodes = dictionaryCodes;
+            this.dictionary = dictionary;
+            this.objects = objects;
+        }
+
+        void reset() {
+            length = 0;
+        }
+
+        void write(Object value) {
+            if(value == null) {
+                writeByte(NULL);
+            }
+            else if(value instanceof Boolean booleanValue) {
+                writeByte(booleanValue ? TRUE : FALSE);
+            }
+            else if(value instanceof Long longValue) {
+                writeByte(INTEGER);
+                writeVarLong(longValue);
+            }
+            else if(value instanceof Double doubleValue) {
+                writeByte(FLOAT);
+                writeFixedLong(Double.doubleToRawLongBits(doubleValue));
+            }
+            else if(value instanceof String stringValue) {
+                writeString(stringValue);
+            }
+            else if(value instanceof List<?> listValue) {
+                writeByte(LIST);
+                writeVarLong(listValue.size());
+                listValue.forEach(this::write);
+            }
+            else if(value instanceof Map<?,?> mapValue) {
+                writeByte(MAP);
+                writeVarLong(mapValue.size());
+                mapValue.forEach((key, entryValue) -> {
+                    writeString(key.toString());
+                    write(entryValue);
+                });
+            }
+            else if(value instanceof byte[] bytesValue) {
+                writeByte(BYTES);
+                writeVarLong(bytesValue.length);
+                writeBytes(bytesValue);
+            }
+            else if(value instanceof LocalDate dateValue) {
+                writeByte(DATE);
+                writeVarLong(dateValue.toEpochDay());
+            }
+            else if(value instanceof OffsetTime timeValue) {
+                writeByte(TIME);
+                writeVarLong(timeValue.toLocalTime().toNanoOfDay());
+                writeVarLong(timeValue.getOffset().getTotalSeconds());
+            }
+            else if(value instanceof LocalTime localTimeValue) {
+                writeByte(LOCAL_TIME);
+                writeVarLong(localTimeValue.toNanoOfDay());
+            }
+            else if(value instanceof LocalDateTime localDateTimeValue) {
+                writeByte(LOCAL_DATE_TIME);
+                writeVarLong(localDateTimeValue.toEpochSecond(ZoneOffset.UTC));
+                writeVarLong(localDateTimeValue.getNano());
+            }
+            else if(value instanceof ZonedDateTime dateTimeValue) {
+                writeByte(DATE_TIME);
+                writeVarLong(dateTimeValue.toEpochSecond());
+                writeVarLong(dateTimeValue.getNano());
+                writeString(dateTimeValue.getZone().getId());
+            }
+            else if(value instanceof IsoDuration durationValue) {
+                writeByte(DURATION);
+                writeVarLong(durationValue.months());
+                writeVarLong(durationValue.days());
+                writeVarLong(durationValue.seconds());
+                writeVarLong(durationValue.nanoseconds());
+            }
+            else if(value instanceof Point pointValue) {
+                writeByte(POINT);
+                writeVarLong(pointValue.srid());
+                writeFixedLong(Double.doubleToRawLongBits(pointValue.x()));
+                writeFixedLong(Double.doubleToRawLongBits(pointValue.y()));
+                writeFixedLong(Double.doubleToRawLongBits(pointValue.z()));
+            }
+            else if(objects == null) {
+                writeString(value.toString());
+            }
+            else {
+                writeByte(OBJECT);
+                writeVarLong(objects.size());
+                objects.add(value);
+            }
+        }
+
+        private void writeString(String value) {
+            Integer code = dictionaryCodes == null ? null : dictionaryCodes.get(value);
+            if(code == null && dictionaryCodes != null && dictionary.size() < DICTIONARY_LIMIT) {
+                code = dictionary.size();
+                dictionaryCodes.put(value, code);
+                dictionary.add(value);
+            }
+            if(code != null) {
+                writeByte(DICTIONARY_STRING);
+                writeVarLong(code);
+            }
+            else {
+                byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+                writeByte(STRING);
+                writeVarLong(utf8.length);
+                writeBytes(utf8);
+            }
+        }
+
+        private void writeVarLong(long value) {
+            long zigZag = (value << 1) ^ (value >> 63);
+            while((zigZag & ~0x7FL) != 0) {
+                writeByte((byte) ((zigZag & 0x7F) | 0x80));
+                zigZag >>>= 7;
+            }
+            writeByte((byte) zigZag);
+        }
+
+        private void writeFixedLong(long value) {
+            for(int shift = 56; shift >= 0; shift -= 8) {
+                writeByte((byte) (value >>> shift));
+            }
+        }
+
+        private void writeBytes(byte[] values) {
+            ensureCapacity(values.length);
+            System.arraycopy(values, 0, bytes, length, values.length);
+            length += values.length;
+        }
+
+        private void writeByte(byte value) {
+            ensureCapacity(1);
+            bytes[length++] = value;
+        }
+
+        private void ensureCapacity(int additionalBytes) {
+            if(length + additionalBytes > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + additionalBytes));
+        }
+    }
+
+    private abstract class Decoder {
+
+        abstract byte readByte();
+
+        abstract byte[] readBytes(int length);
+
+        Object read() {
+            byte tag = readByte();
+            switch(tag) {
+                case NULL: return null;
+                case FALSE: return false;
+                case TRUE: return true;
+                case INTEGER: return readVarLong();
+                case FLOAT: return Double.longBitsToDouble(readFixedLong());
+                case DICTIONARY_STRING:
+                case STRING: return readString(tag);
+                case LIST: {
+                    int listSize = (int) readVarLong();
+                    List<Object> list = new ArrayList<Object>(listSize);
+                    for(int index = 0; index < listSize; index++) list.add(read());
+                    return list;
+                }
+                case MAP: {
+                    int mapSize = (int) readVarLong();
+                    Map<String,Object> map = new LinkedHashMap<String,Object>(mapSize * 2);
+                    for(int index = 0; index < mapSize; index++) map.put(readString(readByte()), read());
+                    return map;
+                }
+                case BYTES: return readBytes((int) readVarLong());
+                case DATE: return LocalDate.ofEpochDay(readVarLong());
+                case TIME: return OffsetTime.of(LocalTime.ofNanoOfDay(readVarLong()), ZoneOffset.ofTotalSeconds((int) readVarLong()));
+                case LOCAL_TIME: return LocalTime.ofNanoOfDay(readVarLong());
+                case LOCAL_DATE_TIME: return LocalDateTime.ofEpochSecond(readVarLong(), (int) readVarLong(), ZoneOffset.UTC);
+                case DATE_TIME: {
+                    Instant instant = Instant.ofEpochSecond(readVarLong(), readVarLong());
+                    return ZonedDateTime.ofInstant(instant, ZoneId.of(readString(readByte())));
+                }
+                case DURATION: return Values.isoDuration(readVarLong(), readVarLong(), readVarLong(), (int) readVarLong()).asIsoDuration();
+                case POINT: {
+                    int srid = (int) readVarLong();
+                    double x = Double.longBitsToDouble(readFixedLong());
+                    double y = Double.longBitsToDouble(readFixedLong());
+                    double z = Double.longBitsToDouble(readFixedLong());
+                    return Double.isNaN(z) ? Values.point(srid, x, y).asPoint() : Values.point(srid, x, y, z).asPoint();
+                }
+                case OBJECT: return objects.get((int) readVarLong());
+                default: throw new IllegalStateException("Unknown parameter store value tag " + tag);
+            }
+        }
+
+        private String readString(byte tag) {
+            if(tag == DICTIONARY_STRING) return dictionary.get((int) readVarLong());
+            return new String(readBytes((int) readVarLong()), StandardCharsets.UTF_8);
+        }
+
+        private long readVarLong() {
+            long zigZag = 0;
+            int shift = 0;
+            byte value;
+            do {
+                value = readByte();
+                zigZag |= (long) (value & 0x7F) << shift;
+                shift += 7;
+            } while((value & 0x80) != 0);
+            return (zigZag >>> 1) ^ -(zigZag & 1);
+        }
+
+        private long readFixedLong() {
+            long value = 0;
+            for(int index = 0; index < Long.BYTES; index++) {
+                value = (value << 8) | (readByte() & 0xFF);
+            }
+            return value;
+        }
+
+    }
+
+    private class SegmentedDecoder extends Decoder {
+
+        private final SegmentedBuffer data;
+        private long position;
+
+        SegmentedDecoder(SegmentedBuffer data, long position) {
+            this.data = data;
+            this.position = position;
+        }
+
+        @Override
+        byte readByte() {
+            return data.get(position++);
+        }
+
+        @Override
+        byte[] readBytes(int length) {
+            byte[] bytes = new byte[length];
+            data.get(position, bytes);
+            position += length;
+            return bytes;
+        }
+    }
+
+    private class ArrayDecoder extends Decoder {
+
+        private final byte[] data;
+        private int position;
+
+        ArrayDecoder(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        byte readByte() {
+            return data[position++];
+        }
+
+        @Override
+        byte[] readBytes(int length) {
+            byte[] bytes = Arrays.copyOfRange(data, position, position + length);
+            position += length;
+            return bytes;
+        }
+    }
+
+    /**
+     * A growable byte sequence made up of allocator segments. Reads use absolute positions only so a fully written
+     * buffer can be read by several worker threads at once.
+     */
+    private static class SegmentedBuffer {
+
+        private final SegmentAllocator allocator;
+        private final List<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+        private long length;
+
+        SegmentedBuffer(SegmentAllocator allocator) {
+            this.allocator = allocator;
+        }
+
+        long length() {
+            return length;
+        }
+
+        void appendLong(long value) {
+            ensureCapacity(Long.BYTES);
+            segments.get((int) (length / SEGMENT_SIZE)).putLong((int) (length % SEGMENT_SIZE), value);
+            length += Long.BYTES;
+        }
+
+        long getLong(long position) {
+            return segments.get((int) (position / SEGMENT_SIZE)).getLong((int) (position % SEGMENT_SIZE));
+        }
+
+        void append(byte[] bytes, int count) {
+            int written = 0;
+            while(written < count) {
+                ensureCapacity(1);
+                int segmentOffset = (int) (length % SEGMENT_SIZE);
+                int chunk = Math.min(count - written, SEGMENT_SIZE - segmentOffset);
+                segments.get((int) (length / SEGMENT_SIZE)).put(segmentOffset, bytes, written, chunk);
+                written += chunk;
+                length += chunk;
+            }
+        }
+
+        byte get(long position) {
+            return segments.get((int) (position / SEGMENT_SIZE)).get((int) (position % SEGMENT_SIZE));
+        }
+
+        void get(long position, byte[] bytes) {
+            int read = 0;
+            while(read < bytes.length) {
+                int segmentOffset = (int) ((position + read) % SEGMENT_SIZE);
+                int chunk = Math.min(bytes.length - read, SEGMENT_SIZE - segmentOffset);
+                segments.get((int) ((position + read) / SEGMENT_SIZE)).get(segmentOffset, bytes, read, chunk);
+                read += chunk;
+            }
+        }
+
+        private void ensureCapacity(int bytes) {
+            while(length + bytes > (long) segments.size() * SEGMENT_SIZE) {
+                segments.add(allocator.allocate());
+            }
+        }
+
+        void release() {
+            segments.forEach(allocator::release);
+            segments.clear();
+            length = 0;
+        }
+    }
+
+    /**
+     * Hands out segments for all parameter stores of a run. Segments are allocated on the heap until the heap budget
+     * is used up and are then mapped from a temp file in the spill directory. Released segments are reused.
+     */
+    static class SegmentAllocator implements AutoCloseable {
+
+        private static final Logger logger = LogManager.getLogger(SegmentAllocator.class);
+
+        private final long heapBudgetBytes;
+        private final Path spillDirectory;
+        private long heapBytesAllocated;
+        private final Deque<ByteBuffer> freeHeapSegments = new ArrayDeque<ByteBuffer>();
+        private final Deque<ByteBuffer> freeMappedSegments = new ArrayDeque<ByteBuffer>();
+        private FileChannel spillFileChannel;
+        private long spillFileLength;
+
+        SegmentAllocator(long heapBudgetBytes, Path spillDirectory) {
+            this.heapBudgetBytes = heapBudgetBytes;
+            this.spillDirectory = spillDirectory;
+        }
+
+        synchronized ByteBuffer allocate() {
+            if(!freeHeapSegments.isEmpty()) return freeHeapSegments.pop();
+            if(heapBytesAllocated + SEGMENT_SIZE <= heapBudgetBytes) {
+                heapBytesAllocated += SEGMENT_SIZE;
+                return ByteBuffer.allocate(SEGMENT_SIZE);
+            }
+            if(!freeMappedSegments.isEmpty()) return freeMappedSegments.pop();
+            try {
+                if(spillFileChannel == null) {
+                    Path spillFile = Files.createTempFile(spillDirectory, "neo4j-batch-update-", ".spill");
+                    spillFileChannel = FileChannel.open(spillFile, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+                    logger.info("Parameter store heap budget of {} MiB used up. Further parameter records will be spilled to {}", heapBudgetBytes / (1024 * 1024), spillFile);
+                }
+                ByteBuffer segment = spillFileChannel.map(FileChannel.MapMode.READ_WRITE, spillFileLength, SEGMENT_SIZE);
+                spillFileLength += SEGMENT_SIZE;
+                return segment;
+            }
+            catch (IOException ioException) {
+                throw new UncheckedIOException(ioException);
+            }
+        }
+
+        synchronized long spilledBytes() {
+            return spillFileLength;
+        }
+
+        synchronized void release(ByteBuffer segment) {
+            if(segment.isDirect()) freeMappedSegments.push(segment);
+            else freeHeapSegments.push(segment);
+        }
+
+        @Override
+        public synchronized void close() {
+            freeHeapSegments.clear();
+            freeMappedSegments.clear();
+            if(spillFileChannel != null) {
+                try {
+                    spillFileChannel.close();
+                }
+                catch (IOException ioException) {
+                    logger.error(ioException.getMessage());
+                }
+                spillFileChannel = null;
+            }
+        }
+    }
+}
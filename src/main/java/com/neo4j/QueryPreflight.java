@@ -0,0 +1,230 @@
+package com.neo4j;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.neo4j.driver.AccessMode;
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.SessionConfig;
+import org.neo4j.driver.Transaction;
+import org.neo4j.driver.summary.Plan;
+import org.neo4j.driver.summary.ProfiledPlan;
+import org.neo4j.driver.summary.ResultSummary;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Checks the cypher of each step on a small sample before a run, without committing anything. The initial collection
+ * step is explained and a sample of its records is read. Every later step is profiled with the sample results of the
+ * step before it as its parameter batch, inside one transaction that is rolled back, to measure its database hits,
+ * result records and time per parameter record. Plans are checked for node scans, and for equality lookups on the
+ * properties of scanned nodes that no index covers, and batch sizes that keep each batch within the target latency
+ * are suggested from the measured time per parameter record.
+ */
+class QueryPreflight {
+
+    private static final Logger logger = LogManager.getLogger(QueryPreflight.class);
+    private static final int MAXIMUM_SUGGESTED_BATCH_SIZE = 100000;
+    private static final Pattern LABEL_SCAN_DETAILS = Pattern.compile("^`?(\\w+)`?:`?(\\w+)`?");
+    private static final Set<String> INDEX_TYPES = Set.of("RANGE", "TEXT", "POINT", "BTREE");
+
+    private final Driver driver;
+    private final String database;
+    private final Map<String,Object> runParameters;
+    private final int sampleSize;
+    private final long targetLatencyMilliseconds;
+    private final Set<String> indexedProperties = new HashSet<String>();
+
+    record StepProfile(String name, int parameterRecords, long dbHits, int resultRecords, long elapsedNanoseconds) {}
+
+    QueryPreflight(Driver driver, String database, Map<String,Object> runParameters, int sampleSize, long targetLatencyMilliseconds) {
+        this.driver = driver;
+        this.database = database;
+        this.runParameters = runParameters;
+        this.sampleSize = Math.max(1, sampleSize);
+        this.targetLatencyMilliseconds = targetLatencyMilliseconds;
+    }
+
+    /**
+     * Runs the preflight checks and returns the profile of each step after the initial collection step.
+     */
+    List<StepProfile> run(List<String> collectionCypherQueries, Map<String,Object> initialQueryParameters, List<String> updateCypherQueries) {
+        readIndexes();
+        List<StepProfile> stepProfiles = new ArrayList<StepProfile>();
+        List<Map<String,Object>> sample = sampleInitialCollection(collectionCypherQueries.get(0), initialQueryParameters);
+        List<String> stepNames = new ArrayList<String>();
+        List<String> stepCypherQueries = new ArrayList<String>();
+        for(int stepNumber = 2; stepNumber <= collectionCypherQueries.size(); stepNumber++) {
+            stepNames.add("collect_" + stepNumber);
+            stepCypherQueries.add(collectionCypherQueries.get(stepNumber-1));
+        }
+        for(int stepNumber = 1; stepNumber <= updateCypherQueries.size(); stepNumber++) {
+            stepNames.add("update_" + stepNumber);
+            stepCypherQueries.add(updateCypherQueries.get(stepNumber-1));
+        }
+        try (var session = driver.session(SessionConfig.builder().withDatabase(database).withDefaultAccessMode(AccessMode.WRITE).build());
+             Transaction tx = session.beginTransaction()) {
+            for(int step = 0; step < stepNames.size(); step++) {
+                String stepName = stepNames.get(step);
+                Map<String,Object> queryParameters = new HashMap<>(runParameters);
+                queryParameters.put("batch", sample);
+                if(sample.isEmpty()) {
+                    logger.warn("Preflight has no sample parameter records for step {}, so it is explained but not profiled", stepName);
+                    var result = tx.run("EXPLAIN " + stepCypherQueries.get(step), queryParameters);
+                    checkPlan(stepName, result.consume().plan(), true);
+                    continue;
+                }
+                long startTime = System.nanoTime();
+                var result = tx.run("PROFILE " + stepCypherQueries.get(step), queryParameters);
+                var records = result.list();
+                ResultSummary summary = result.consume();
+                StepProfile stepProfile = new StepProfile(stepName, sample.size(), totalDbHits(summary.profile()), records.size(), System.nanoTime() - startTime);
+                stepProfiles.add(stepProfile);
+                logProfile(stepProfile);
+                checkPlan(stepName, summary.profile(), true);
+                sample = records.stream().map(record -> record.asMap()).toList();
+            }
+            tx.rollback();
+        }
+        logSuggestedBatchSizes(stepProfiles);
+        return stepProfiles;
+    }
+
+    private void readIndexes() {
+        try (var session = driver.session(SessionConfig.builder().withDatabase(database).withDefaultAccessMode(AccessMode.READ).build())) {
+            session.executeRead(tx -> tx.run("SHOW INDEXES YIELD type, entityType, labelsOrTypes, properties, state").list()).forEach(index -> {
+                if(!index.get("entityType").asString().equals("NODE") || !INDEX_TYPES.contains(index.get("type").asString()) || index.get("state").asString().equals("FAILED")) return;
+                if(index.get("labelsOrTypes").isNull() || index.get("properties").isNull()) return;
+                // Only the leading property of a composite index can be used on its own.
+                String leadingProperty = index.get("properties").get(0).asString();
+                index.get("labelsOrTypes").asList(label -> label.asString()).forEach(label -> indexedProperties.add(label + "." + leadingProperty));
+            });
+        }
+        logger.info("Preflight found {} node propert{} with a usable index", indexedProperties.size(), indexedProperties.size() == 1 ? "y" : "ies");
+    }
+
+    private List<Map<String,Object>> sampleInitialCollection(String cypherQuery, Map<String,Object> initialQueryParameters) {
+        List<Map<String,Object>> sample = new ArrayList<Map<String,Object>>();
+        Map<String,Object> queryParameters = new HashMap<>(runParameters);
+        queryParameters.putAll(initialQueryParameters);
+        try (var session = driver.session(SessionConfig.builder().withDatabase(database).withDefaultAccessMode(AccessMode.READ).build());
+             Transaction tx = session.beginTransaction()) {
+            checkPlan("collect_1", tx.run("EXPLAIN " + cypherQuery, queryParameters).consume().plan(), false);
+            var result = tx.run(cypherQuery, queryParameters);
+            while(sample.size() < sampleSize && result.hasNext()) {
+                sample.add(result.next().asMap());
+            }
+            tx.rollback();
+        }
+        logger.info("Preflight read a sample of {} record{} from collection step 1", String.format("%,d", sample.size()), sample.size() == 1 ? "" : "s");
+        return sample;
+    }
+
+    private static long totalDbHits(ProfiledPlan profiledPlan) {
+        long dbHits = profiledPlan.dbHits();
+        for(ProfiledPlan child : profiledPlan.children()) {
+            dbHits += totalDbHits(child);
+        }
+        return dbHits;
+    }
+
+    private static void logProfile(StepProfile stepProfile) {
+        double parameterRecords = stepProfile.parameterRecords();
+        logger.info("Preflight profiled step {} on {} sample parameter record{}: {} db hit{} ({} per parameter record), {} result record{} ({} per parameter record) in {} ms ({} ms per parameter record)", stepProfile.name(), String.format("%,d", stepProfile.parameterRecords()), stepProfile.parameterRecords() == 1 ? "" : "s", String.format("%,d", stepProfile.dbHits()), stepProfile.dbHits() == 1 ? "" : "s", String.format("%,.1f", stepProfile.dbHits() / parameterRecords), String.format("%,d", stepProfile.resultRecords()), stepProfile.resultRecords() == 1 ? "" : "s", String.format("%,.2f", stepProfile.resultRecords() / parameterRecords), String.format("%,d", stepProfile.elapsedNanoseconds() / 1_000_000), String.format("%,.3f", stepProfile.elapsedNanoseconds() / 1_000_000.0 / parameterRecords));
+    }
+
+    /**
+     * Logs the node scans in a plan, warning about those in batched steps as they are repeated for every batch, and
+     * the equality lookups on properties of scanned nodes that could use an index but have none.
+     */
+    private void checkPlan(String stepName, Plan plan, boolean batched) {
+        Map<String,String> scannedVariables = new HashMap<String,String>();
+        List<String> filters = new ArrayList<String>();
+        collectOperators(plan, scannedVariables, filters);
+        if(plan != null && containsOperator(plan, "AllNodesScan")) {
+            if(batched) logger.warn("Step {} scans all nodes for every batch", stepName);
+            else logger.info("Step {} scans all nodes", stepName);
+        }
+        scannedVariables.forEach((variable, label) -> {
+            if(batched) logger.warn("Step {} scans all :{} nodes for {} in every batch", stepName, label, variable);
+            else logger.info("Step {} scans all :{} nodes for {}", stepName, label, variable);
+            for(String property : lookupProperties(variable, filters)) {
+                if(indexedProperties.contains(label + "." + property)) continue;
+                logger.warn("Step {} looks up :{} nodes by {} but there is no index on :{}({}). It can be created with: CREATE INDEX FOR (n:{}) ON (n.{})", stepName, label, property, label, property, label, property);
+            }
+        });
+    }
+
+    private static void collectOperators(Plan plan, Map<String,String> scannedVariables, List<String> filters) {
+        if(plan == null) return;
+        String operatorType = plan.operatorType().split("@")[0];
+        String details = plan.arguments().containsKey("Details") ? plan.arguments().get("Details").asString() : "";
+        if(operatorType.equals("NodeByLabelScan")) {
+            Matcher matcher = LABEL_SCAN_DETAILS.matcher(details);
+            if(matcher.find()) scannedVariables.put(matcher.group(1), matcher.group(2));
+        }
+        else if(operatorType.equals("Filter")) {
+            filters.add(details);
+        }
+        for(Plan child : plan.children()) {
+            collectOperators(child, scannedVariables, filters);
+        }
+    }
+
+    private static boolean containsOperator(Plan plan, String operatorType) {
+        if(plan.operatorType().split("@")[0].equals(operatorType)) return true;
+        return plan.children().stream().anyMatch(child -> containsOperator(child, operatorType));
+    }
+
+    /**
+     * Returns the properties of {@code variable} that filters compare for equality with something not involving it.
+     */
+    private static Set<String> lookupProperties(String variable, List<String> filters) {
+        Pattern propertyPattern = Pattern.compile("^(?:cache\\[)?`?" + Pattern.quote(variable) + "`?\\.`?(\\w+)`?\\]?$");
+        Set<String> properties = new HashSet<String>();
+        for(String filter : filters) {
+            for(String predicate : filter.split(" AND ")) {
+                String[] sides = predicate.trim().replaceAll("^\\(|\\)$", "").split(" = | IN ", 2);
+                if(sides.length != 2) continue;
+                for(int side = 0; side < 2; side++) {
+                    Matcher matcher = propertyPattern.matcher(sides[side].trim());
+                    if(matcher.matches() && !sides[1-side].matches(".*\\b" + Pattern.quote(variable) + "\\b.*")) properties.add(matcher.group(1));
+                }
+            }
+        }
+        return properties;
+    }
+
+    private void logSuggestedBatchSizes(List<StepProfile> stepProfiles) {
+        int collectBatchSize = 0;
+        int updateBatchSize = 0;
+        for(StepProfile stepProfile : stepProfiles) {
+            int batchSize = suggestedBatchSize(stepProfile);
+            logger.info("Preflight suggests batches of up to {} parameter records for step {} to keep each batch within {} ms", String.format("%,d", batchSize), stepProfile.name(), targetLatencyMilliseconds);
+            if(stepProfile.name().startsWith("collect")) collectBatchSize = collectBatchSize == 0 ? batchSize : Math.min(collectBatchSize, batchSize);
+            else updateBatchSize = updateBatchSize == 0 ? batchSize : Math.min(updateBatchSize, batchSize);
+        }
+        if(collectBatchSize > 0) logger.info("Preflight suggests a collect batch size of {}", String.format("%,d", collectBatchSize));
+        if(updateBatchSize > 0) logger.info("Preflight suggests an update batch size of {}", String.format("%,d", updateBatchSize));
+    }
+
+    /**
+     * Returns the number of parameter records that the measured time per record fits into the target latency, rounded
+     * down to one significant figure. The time of a sample includes the fixed cost of a transaction, so this errs on
+     * the small side.
+     */
+    int suggestedBatchSize(StepProfile stepProfile) {
+        double nanosecondsPerRecord = (double) stepProfile.elapsedNanoseconds() / stepProfile.parameterRecords();
+        if(nanosecondsPerRecord <= 0) return MAXIMUM_SUGGESTED_BATCH_SIZE;
+        long batchSize = Math.min(MAXIMUM_SUGGESTED_BATCH_SIZE, (long) (targetLatencyMilliseconds * 1_000_000L / nanosecondsPerRecord));
+        if(batchSize < 1) return 1;
+        long magnitude = (long) Math.pow(10, Math.floor(Math.log10(batchSize)));
+        return (int) (batchSize / magnitude * magnitude);
+    }
+}
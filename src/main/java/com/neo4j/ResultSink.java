@@ -0,0 +1,173 @@
+package com.neo4j;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.neo4j.driver.Value;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.temporal.TemporalAccessor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the result records of one step to its results file on a background thread as batches complete, so that
+ * saving results overlaps with processing instead of following it. Rows are written as CSV, with lists, maps and
+ * graph values encoded as JSON within their cell, or as newline-delimited JSON objects, optionally gzip compressed.
+ * <p>
+ * The file is only created once the first non-empty batch arrives, so steps without results leave no file. A sink
+ * without a file path discards everything written to it, as does a sink that failed to write, after logging why.
+ */
+class ResultSink implements AutoCloseable {
+
+    private static final Logger logger = LogManager.getLogger(ResultSink.class);
+    private static final List<Object[]> END_OF_RESULTS = new ArrayList<Object[]>(0);
+    private static final int QUEUE_SIZE = 16;
+    private static final int CHUNK_SIZE = 10000;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final long POLL_MILLISECONDS = 100;
+
+    private final Path filePath;
+    private final boolean json;
+    private final boolean compress;
+    private final BlockingQueue<List<Object[]>> queue = new ArrayBlockingQueue<List<Object[]>>(QUEUE_SIZE);
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    private List<String> keys;
+    private Thread writerThread;
+    private long numberOfRows;
+    private volatile boolean closed;
+
+    ResultSink(Path filePath, String format, boolean compress) {
+        this.filePath = filePath;
+        this.json = format.equals("ndjson");
+        this.compress = compress;
+    }
+
+    static String fileExtension(String format, boolean compress) {
+        return "." + format + (compress ? ".gz" : "");
+    }
+
+    void write(List<org.neo4j.driver.Record> records) {
+        if(filePath == null || records.isEmpty()) return;
+        List<Object[]> rows = new ArrayList<Object[]>(records.size());
+        for(org.neo4j.driver.Record record : records) {
+            rows.add(record.values().stream().map(Value::asObject).toArray());
+        }
+        enqueue(records.get(0).keys(), rows);
+    }
+
+    void write(ParameterStore records) {
+        if(filePath == null || records.size() == 0) return;
+        for(int fromRow = 0; fromRow < records.size(); fromRow += CHUNK_SIZE) {
+            int toRow = Math.min(fromRow + CHUNK_SIZE, records.size());
+            List<Object[]> rows = new ArrayList<Object[]>(toRow - fromRow);
+            for(int row = fromRow; row < toRow; row++) {
+                rows.add(records.values(row).toArray());
+            }
+            enqueue(records.keys(), rows);
+        }
+    }
+
+    private void enqueue(List<String> rowKeys, List<Object[]> rows) {
+        synchronized(this) {
+            if(writerThread == null) {
+                keys = List.copyOf(rowKeys);
+                writerThread = new Thread(this::writeRows, "results-" + filePath.getFileName());
+                writerThread.setDaemon(true);
+                writerThread.start();
+            }
+        }
+        try {
+            while(failure.get() == null && !closed) {
+                if(queue.offer(rows, POLL_MILLISECONDS, TimeUnit.MILLISECONDS)) return;
+            }
+        }
+        catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while writing results to " + filePath, interruptedException);
+        }
+    }
+
+    private void writeRows() {
+        try (OutputStream output = compress ? new GZIPOutputStream(Files.newOutputStream(filePath), BUFFER_SIZE) : new BufferedOutputStream(Files.newOutputStream(filePath), BUFFER_SIZE);
+             Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            CSVPrinter csvPrinter = json ? null : new CSVPrinter(writer, CSVFormat.DEFAULT);
+            if(csvPrinter != null) csvPrinter.printRecord(keys);
+            StringBuilder line = new StringBuilder();
+            Object[] cells = new Object[keys.size()];
+            List<Object[]> rows;
+            while((rows = queue.take()) != END_OF_RESULTS) {
+                for(Object[] values : rows) {
+                    if(csvPrinter != null) {
+                        for(int columnIndex = 0; columnIndex < values.length; columnIndex++) {
+                            cells[columnIndex] = csvCell(values[columnIndex]);
+                        }
+                        csvPrinter.printRecord(cells);
+                    }
+                    else {
+                        line.setLength(0);
+                        line.append('{');
+                        for(int columnIndex = 0; columnIndex < values.length; columnIndex++) {
+                            if(columnIndex > 0) line.append(',');
+                            JsonEncoder.appendString(line, keys.get(columnIndex));
+                            line.append(':');
+                            JsonEncoder.append(line, values[columnIndex]);
+                        }
+                        line.append("}\n");
+                        writer.append(line);
+                    }
+                }
+                numberOfRows += rows.size();
+            }
+            if(csvPrinter != null) csvPrinter.flush();
+        }
+        catch (Throwable throwable) {
+            failure.set(throwable);
+            logger.error("Unable to write results to {} due to the following error. Further results of this step will not be saved.\n{}\n{}", filePath, throwable.getClass().getName(), throwable.getMessage());
+        }
+    }
+
+    /**
+     * Returns the CSV cell for a value: strings, numbers, booleans and temporal values as their text, and everything
+     * else as JSON, which the CSV printer quotes as needed.
+     */
+    private static Object csvCell(Object value) {
+        if(value == null || value instanceof String || value instanceof Boolean || value instanceof Long || value instanceof TemporalAccessor) return value;
+        if(value instanceof Double) return value;
+        return JsonEncoder.encode(value);
+    }
+
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized(this) {
+            thread = writerThread;
+        }
+        if(thread == null) return;
+        closed = true;
+        try {
+            while(failure.get() == null && thread.isAlive()) {
+                if(queue.offer(END_OF_RESULTS, POLL_MILLISECONDS, TimeUnit.MILLISECONDS)) break;
+            }
+            thread.join();
+        }
+        catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while writing results to " + filePath, interruptedException);
+        }
+        if(failure.get() == null) logger.info("{} result record{} written to {}", String.format("%,d", numberOfRows), numberOfRows == 1 ? "" : "s", filePath);
+    }
+}
@@ -0,0 +1,306 @@
+package com.neo4j;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.neo4j.driver.summary.SummaryCounters;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects the metrics of a run: for each step, the latency of every batch, the records processed and returned,
+ * the retries needed and the sums of the update counters Neo4j reports for each batch. Progress of the steps in
+ * flight is logged at a fixed interval with an estimate of the time remaining where the number of parameter records
+ * is known, and the metrics can be written as a JSON run report.
+ */
+class RunMetrics implements AutoCloseable {
+
+    private static final Logger logger = LogManager.getLogger(RunMetrics.class);
+    private static final String[] COUNTER_NAMES = {"nodesCreated", "nodesDeleted", "relationshipsCreated", "relationshipsDeleted", "propertiesSet", "labelsAdded", "labelsRemoved", "indexesAdded", "indexesRemoved", "constraintsAdded", "constraintsRemoved", "systemUpdates"};
+
+    private final Instant startTime = Instant.now();
+    private final List<StepMetrics> steps = new ArrayList<StepMetrics>();
+    private final ScheduledExecutorService progressExecutorService;
+    private volatile boolean completed;
+
+    RunMetrics(long progressIntervalSeconds) {
+        if(progressIntervalSeconds > 0) {
+            progressExecutorService = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "progress");
+                thread.setDaemon(true);
+                return thread;
+            });
+            progressExecutorService.scheduleAtFixedRate(this::logProgress, progressIntervalSeconds, progressIntervalSeconds, TimeUnit.SECONDS);
+        }
+        else {
+            progressExecutorService = null;
+        }
+    }
+
+    /**
+     * Starts collecting the metrics of a step, whose number of parameter records is given if it is known in
+     * advance, or is negative otherwise.
+     */
+    StepMetrics startStep(String name, long numberOfParameterRecords) {
+        StepMetrics stepMetrics = new StepMetrics(name, numberOfParameterRecords);
+        synchronized(steps) {
+            steps.add(stepMetrics);
+        }
+        return stepMetrics;
+    }
+
+    void runCompleted() {
+        completed = true;
+    }
+
+    private void logProgress() {
+        List<StepMetrics> activeSteps;
+        synchronized(steps) {
+            activeSteps = steps.stream().filter(step -> step.endNanoseconds == 0).toList();
+        }
+        for(StepMetrics step : activeSteps) {
+            step.logProgress();
+        }
+    }
+
+    /**
+     * Writes the run report, with the settings the run was started with and the metrics of every step, to the given
+     * file.
+     */
+    void writeReport(Path reportFilePath, Map<String,Object> settings) {
+        Map<String,Object> report = new LinkedHashMap<String,Object>();
+        Instant endTime = Instant.now();
+        report.put("status", completed ? "completed" : "aborted");
+        report.put("startTime", startTime.toString());
+        report.put("endTime", endTime.toString());
+        report.put("durationMilliseconds", Duration.between(startTime, endTime).toMillis());
+        report.put("settings", settings);
+        List<Map<String,Object>> stepReports = new ArrayList<Map<String,Object>>();
+        synchronized(steps) {
+            for(StepMetrics step : steps) {
+                stepReports.add(step.report());
+            }
+        }
+        report.put("steps", stepReports);
+        try {
+            Files.writeString(reportFilePath, JsonEncoder.encode(report) + System.lineSeparator(), StandardCharsets.UTF_8);
+            logger.info("Run report written to {}", reportFilePath);
+        }
+        catch (IOException ioException) {
+            logger.error(ioException.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        if(progressExecutorService != null) progressExecutorService.shutdownNow();
+    }
+
+    static class StepMetrics {
+
+        private final String name;
+        private final long numberOfParameterRecords;
+        private volatile long skippedParameterRecords;
+        private final long startNanoseconds = System.nanoTime();
+        private volatile long endNanoseconds;
+        private final AtomicLong processedParameterRecords = new AtomicLong();
+        private final AtomicLong resultRecords = new AtomicLong();
+        private final AtomicLong batches = new AtomicLong();
+        private final AtomicLong retries = new AtomicLong();
+        private final AtomicLongArray counters = new AtomicLongArray(COUNTER_NAMES.length);
+        private final LatencyHistogram latencies = new LatencyHistogram();
+
+        private StepMetrics(String name, long numberOfParameterRecords) {
+            this.name = name;
+            this.numberOfParameterRecords = numberOfParameterRecords;
+        }
+
+        void batchCompleted(int numberOfBatchParameterRecords, BatchUpdater.BatchResult batchResult) {
+            processedParameterRecords.addAndGet(numberOfBatchParameterRecords);
+            resultRecords.addAndGet(batchResult.records().size());
+            batches.incrementAndGet();
+            retries.addAndGet(Math.max(0, batchResult.attempts() - 1));
+            latencies.record(batchResult.latencyNanoseconds());
+            SummaryCounters summaryCounters = batchResult.counters();
+            if(summaryCounters != null) {
+                long[] values = {summaryCounters.nodesCreated(), summaryCounters.nodesDeleted(), summaryCounters.relationshipsCreated(), summaryCounters.relationshipsDeleted(), summaryCounters.propertiesSet(), summaryCounters.labelsAdded(), summaryCounters.labelsRemoved(), summaryCounters.indexesAdded(), summaryCounters.indexesRemoved(), summaryCounters.constraintsAdded(), summaryCounters.constraintsRemoved(), summaryCounters.systemUpdates()};
+                for(int index = 0; index < values.length; index++) {
+                    if(values[index] != 0) counters.addAndGet(index, values[index]);
+                }
+            }
+        }
+
+        /**
+         * Notes the parameter records of batches committed before a resumed run, which are not processed again and
+         * so are left out of the progress of the step.
+         */
+        void parameterRecordsSkipped(long numberOfSkippedParameterRecords) {
+            skippedParameterRecords = numberOfSkippedParameterRecords;
+        }
+
+        /**
+         * Counts result records streamed by a step that does not run in batches.
+         */
+        void recordsStreamed(int numberOfRecords) {
+            resultRecords.addAndGet(numberOfRecords);
+        }
+
+        void completed() {
+            endNanoseconds = System.nanoTime();
+            long elapsedNanoseconds = endNanoseconds - startNanoseconds;
+            if(batches.get() > 0) {
+                logger.info("Step {} processed {} parameter record{} in {} batch{} in {} ({} records/s) with batch latencies p50 {} ms, p99 {} ms and max {} ms and {} retr{}{}", name, String.format("%,d", processedParameterRecords.get()), processedParameterRecords.get() == 1 ? "" : "s", String.format("%,d", batches.get()), batches.get() == 1 ? "" : "es", formatDuration(elapsedNanoseconds), String.format("%,.0f", recordsPerSecond(processedParameterRecords.get(), elapsedNanoseconds)), formatMilliseconds(latencies.percentile(0.5)), formatMilliseconds(latencies.percentile(0.99)), formatMilliseconds(latencies.maximum()), retries.get(), retries.get() == 1 ? "y" : "ies", countersSummary());
+            }
+            else {
+                logger.info("Step {} returned {} result record{} in {} ({} records/s)", name, String.format("%,d", resultRecords.get()), resultRecords.get() == 1 ? "" : "s", formatDuration(elapsedNanoseconds), String.format("%,.0f", recordsPerSecond(resultRecords.get(), elapsedNanoseconds)));
+            }
+        }
+
+        private String countersSummary() {
+            StringBuilder summary = new StringBuilder();
+            for(int index = 0; index < COUNTER_NAMES.length; index++) {
+                if(counters.get(index) != 0) summary.append(summary.length() == 0 ? ", changing " : ", ").append(String.format("%,d", counters.get(index))).append(' ').append(COUNTER_NAMES[index]);
+            }
+            return summary.toString();
+        }
+
+        private void logProgress() {
+            long elapsedNanoseconds = System.nanoTime() - startNanoseconds;
+            long processed = processedParameterRecords.get();
+            if(batches.get() == 0) {
+                logger.info("Progress of step {}: {} result record{} after {}", name, String.format("%,d", resultRecords.get()), resultRecords.get() == 1 ? "" : "s", formatDuration(elapsedNanoseconds));
+                return;
+            }
+            double rate = recordsPerSecond(processed, elapsedNanoseconds);
+            String estimate = "";
+            long numberOfParameterRecordsToProcess = numberOfParameterRecords - skippedParameterRecords;
+            if(numberOfParameterRecordsToProcess > 0) {
+                long remaining = Math.max(0, numberOfParameterRecordsToProcess - processed);
+                estimate = String.format(" of %,d (%.1f%%), about %s remaining", numberOfParameterRecordsToProcess, 100.0 * processed / numberOfParameterRecordsToProcess, rate > 0 ? formatDuration((long) (remaining / rate * 1_000_000_000L)) : "unknown");
+            }
+            logger.info("Progress of step {}: {} parameter record{}{} at {} records/s, batch latencies p50 {} ms and p99 {} ms, {} retr{}", name, String.format("%,d", processed), processed == 1 ? "" : "s", estimate, String.format("%,.0f", rate), formatMilliseconds(latencies.percentile(0.5)), formatMilliseconds(latencies.percentile(0.99)), retries.get(), retries.get() == 1 ? "y" : "ies");
+        }
+
+        private Map<String,Object> report() {
+            long elapsedNanoseconds = (endNanoseconds == 0 ? System.nanoTime() : endNanoseconds) - startNanoseconds;
+            Map<String,Object> report = new LinkedHashMap<String,Object>();
+            report.put("name", name);
+            report.put("completed", endNanoseconds != 0);
+            report.put("durationMilliseconds", elapsedNanoseconds / 1_000_000);
+            if(numberOfParameterRecords >= 0) report.put("parameterRecords", numberOfParameterRecords);
+            if(skippedParameterRecords > 0) report.put("skippedParameterRecords", skippedParameterRecords);
+            report.put("processedParameterRecords", processedParameterRecords.get());
+            report.put("resultRecords", resultRecords.get());
+            report.put("batches", batches.get());
+            report.put("retries", retries.get());
+            report.put("recordsPerSecond", recordsPerSecond(batches.get() > 0 ? processedParameterRecords.get() : resultRecords.get(), elapsedNanoseconds));
+            if(batches.get() > 0) {
+                Map<String,Object> latencyReport = new LinkedHashMap<String,Object>();
+                latencyReport.put("min", latencies.minimum() / 1_000_000.0);
+                latencyReport.put("mean", latencies.mean() / 1_000_000.0);
+                latencyReport.put("p50", latencies.percentile(0.5) / 1_000_000.0);
+                latencyReport.put("p90", latencies.percentile(0.9) / 1_000_000.0);
+                latencyReport.put("p99", latencies.percentile(0.99) / 1_000_000.0);
+                latencyReport.put("max", latencies.maximum() / 1_000_000.0);
+                report.put("batchLatencyMilliseconds", latencyReport);
+            }
+            Map<String,Object> counterReport = new LinkedHashMap<String,Object>();
+            for(int index = 0; index < COUNTER_NAMES.length; index++) {
+                counterReport.put(COUNTER_NAMES[index], counters.get(index));
+            }
+            report.put("counters", counterReport);
+            return report;
+        }
+    }
+
+    /**
+     * Counts latencies in buckets that are exact below 64 microseconds and within about 3% above, so percentiles can
+     * be read without keeping every latency.
+     */
+    static class LatencyHistogram {
+
+        private static final int SUB_BUCKET_BITS = 5;
+        private static final int LINEAR_LIMIT = 64;
+        private final long[] counts = new long[LINEAR_LIMIT + (64 - 6) * (1 << SUB_BUCKET_BITS)];
+        private long count;
+        private long sum;
+        private long minimum = Long.MAX_VALUE;
+        private long maximum;
+
+        synchronized void record(long nanoseconds) {
+            long microseconds = Math.max(0, nanoseconds / 1000);
+            counts[bucket(microseconds)]++;
+            count++;
+            sum += nanoseconds;
+            minimum = Math.min(minimum, nanoseconds);
+            maximum = Math.max(maximum, nanoseconds);
+        }
+
+        private static int bucket(long microseconds) {
+            if(microseconds < LINEAR_LIMIT) return (int) microseconds;
+            int exponent = 63 - Long.numberOfLeadingZeros(microseconds);
+            int subBucket = (int) (microseconds >>> (exponent - SUB_BUCKET_BITS)) & ((1 << SUB_BUCKET_BITS) - 1);
+            return LINEAR_LIMIT + (exponent - 6) * (1 << SUB_BUCKET_BITS) + subBucket;
+        }
+
+        private static long bucketMidpointMicroseconds(int bucket) {
+            if(bucket < LINEAR_LIMIT) return bucket;
+            int exponent = (bucket - LINEAR_LIMIT) / (1 << SUB_BUCKET_BITS) + 6;
+            int subBucket = (bucket - LINEAR_LIMIT) % (1 << SUB_BUCKET_BITS);
+            long lowerBound = (1L << exponent) + ((long) subBucket << (exponent - SUB_BUCKET_BITS));
+            return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) / 2;
+        }
+
+        /**
+         * Returns the latency in nanoseconds that the given fraction of latencies are at or below.
+         */
+        synchronized long percentile(double fraction) {
+            if(count == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(fraction * count));
+            long seen = 0;
+            for(int bucket = 0; bucket < counts.length; bucket++) {
+                seen += counts[bucket];
+                if(seen >= rank) return Math.min(maximum, Math.max(minimum, bucketMidpointMicroseconds(bucket) * 1000));
+            }
+            return maximum;
+        }
+
+        synchronized long minimum() {
+            return count == 0 ? 0 : minimum;
+        }
+
+        synchronized long maximum() {
+            return maximum;
+        }
+
+        synchronized double mean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+    }
+
+    private static double recordsPerSecond(long numberOfRecords, long elapsedNanoseconds) {
+        return elapsedNanoseconds <= 0 ? 0 : numberOfRecords * 1_000_000_000.0 / elapsedNanoseconds;
+    }
+
+    private static String formatMilliseconds(long nanoseconds) {
+        return String.format("%,d", nanoseconds / 1_000_000);
+    }
+
+    private static String formatDuration(long nanoseconds) {
+        long seconds = nanoseconds / 1_000_000_000L;
+        return String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+}
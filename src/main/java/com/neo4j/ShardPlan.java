@@ -0,0 +1,81 @@
+package com.neo4j;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Objects;
+
+/**
+ * Assigns the rows of a parameter store to worker lanes by a hash of one of its columns, so that all rows with the
+ * same key value are processed by the same lane. Each lane processes its batches one after another, which keeps
+ * batches that lock the same nodes from running at the same time, while different lanes run in parallel.
+ * <p>
+ * Rows are addressed by their position in the lane order: lane 0's rows first, then lane 1's, and so on, with rows
+ * keeping their original order within a lane.
+ */
+class ShardPlan {
+
+    private static final Logger logger = LogManager.getLogger(ShardPlan.class);
+
+    private final int[] rowOrder;
+    private final int[] laneStarts;
+
+    private ShardPlan(int[] rowOrder, int[] laneStarts) {
+        this.rowOrder = rowOrder;
+        this.laneStarts = laneStarts;
+    }
+
+    /**
+     * Returns the plan for sharding on {@code keyColumn}, or null if the parameter records have no such column.
+     */
+    static ShardPlan build(ParameterStore parameterRecords, String keyColumn, int numberOfLanes) {
+        int columnIndex = parameterRecords.keys().indexOf(keyColumn);
+        if(columnIndex == -1) {
+            if(parameterRecords.size() > 0) logger.warn("Parameter records have no {} column to shard on. Batches will not be sharded.", keyColumn);
+            return null;
+        }
+        int numberOfRows = parameterRecords.size();
+        // Lanes are hashed twice, once to count and once to place each row, rather than holding every row's lane.
+        int[] laneStarts = new int[numberOfLanes + 1];
+        for(int row = 0; row < numberOfRows; row++) {
+            laneStarts[lane(parameterRecords.value(row, columnIndex), numberOfLanes) + 1]++;
+        }
+        for(int lane = 0; lane < numberOfLanes; lane++) {
+            laneStarts[lane + 1] += laneStarts[lane];
+        }
+        int[] rowOrder = new int[numberOfRows];
+        int[] nextLanePositions = laneStarts.clone();
+        for(int row = 0; row < numberOfRows; row++) {
+            rowOrder[nextLanePositions[lane(parameterRecords.value(row, columnIndex), numberOfLanes)]++] = row;
+        }
+        ShardPlan shardPlan = new ShardPlan(rowOrder, laneStarts);
+        int smallestLane = Integer.MAX_VALUE;
+        int largestLane = 0;
+        for(int lane = 0; lane < numberOfLanes; lane++) {
+            smallestLane = Math.min(smallestLane, shardPlan.laneEnd(lane) - shardPlan.laneStart(lane));
+            largestLane = Math.max(largestLane, shardPlan.laneEnd(lane) - shardPlan.laneStart(lane));
+        }
+        logger.info("Parameter records are sharded on {} into {} lane{} of {} to {} record{}", keyColumn, numberOfLanes, numberOfLanes == 1 ? "" : "s", String.format("%,d", smallestLane), String.format("%,d", largestLane), largestLane == 1 ? "" : "s");
+        return shardPlan;
+    }
+
+    private static int lane(Object keyValue, int numberOfLanes) {
+        return Math.floorMod(Objects.hashCode(keyValue) * 0x9E3779B9, numberOfLanes);
+    }
+
+    int[] rowOrder() {
+        return rowOrder;
+    }
+
+    int numberOfLanes() {
+        return laneStarts.length - 1;
+    }
+
+    int laneStart(int lane) {
+        return laneStarts[lane];
+    }
+
+    int laneEnd(int lane) {
+        return laneStarts[lane + 1];
+    }
+}
@@ -0,0 +1,166 @@
+package com.neo4j;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CheckpointJournalTest {
+
+    private static final List<String> KEYS = List.of("requestId", "count");
+
+    @TempDir
+    Path directory;
+
+    private ParameterStore.SegmentAllocator allocator;
+
+    @BeforeEach
+    void setUp() {
+        allocator = new ParameterStore.SegmentAllocator(16L * ParameterStore.SEGMENT_SIZE, directory);
+    }
+
+    @AfterEach
+    void tearDown() {
+        allocator.close();
+    }
+
+    private static List<org.neo4j.driver.Record> batchResults(int fromRow, int toRow) {
+        return IntStream.range(fromRow, toRow).mapToObj(row -> ParameterStoreTest.record(KEYS, "r" + row, (long) row)).toList();
+    }
+
+    private static BitSet rows(int fromRow, int toRow) {
+        BitSet rows = new BitSet();
+        rows.set(fromRow, toRow);
+        return rows;
+    }
+
+    @Test
+    void resumesCompletedStepsAndCommittedBatches() throws IOException {
+        CheckpointJournal.Step collectStep = CheckpointJournal.START.next("collect_1", "MATCH (n) RETURN n.requestId AS requestId");
+        CheckpointJournal.Step updateStep = collectStep.next("update_1", "UNWIND $batch AS b RETURN b.requestId AS requestId");
+        try (CheckpointJournal journal = new CheckpointJournal(directory, false); ParameterStore collected = new ParameterStore(allocator)) {
+            collected.append(batchResults(0, 10));
+            journal.stepCompleted(collectStep, collected);
+            journal.batchCommitted(updateStep, 0, 4, batchResults(0, 4));
+            journal.batchCommitted(updateStep, 6, 10, batchResults(6, 10));
+        }
+        try (CheckpointJournal journal = new CheckpointJournal(directory, true); ParameterStore collected = new ParameterStore(allocator); ParameterStore updated = new ParameterStore(allocator)) {
+            assertTrue(journal.isStepCompleted(collectStep));
+            assertFalse(journal.isStepCompleted(updateStep));
+            journal.loadStep(collectStep, collected);
+            assertEquals(10, collected.size());
+            assertEquals("r9", collected.value(9, 0));
+            BitSet committed = journal.loadCommittedBatches(updateStep, updated);
+            BitSet expected = rows(0, 4);
+            expected.or(rows(6, 10));
+            assertEquals(expected, committed);
+            assertEquals(8, updated.size());
+        }
+    }
+
+    @Test
+    void ignoresBatchFrameCutShort() throws IOException {
+        CheckpointJournal.Step updateStep = CheckpointJournal.START.next("update_1", "RETURN 1");
+        try (CheckpointJournal journal = new CheckpointJournal(directory, false)) {
+            journal.batchCommitted(updateStep, 0, 3, batchResults(0, 3));
+            journal.batchCommitted(updateStep, 3, 6, batchResults(3, 6));
+        }
+        // Cut the last frame short, as a failure part way through writing it would.
+        Path batchFile = batchFile(updateStep);
+        try (FileChannel channel = FileChannel.open(batchFile, StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(batchFile) - 5);
+        }
+        try (CheckpointJournal journal = new CheckpointJournal(directory, true); ParameterStore updated = new ParameterStore(allocator)) {
+            assertEquals(rows(0, 3), journal.loadCommittedBatches(updateStep, updated));
+            assertEquals(3, updated.size());
+            assertEquals("r2", updated.value(2, 0));
+        }
+    }
+
+    @Test
+    void ignoresFrameThatWasNotJournaled() throws IOException {
+        CheckpointJournal.Step updateStep = CheckpointJournal.START.next("update_1", "RETURN 1");
+        try (CheckpointJournal journal = new CheckpointJournal(directory, false)) {
+            journal.batchCommitted(updateStep, 0, 3, batchResults(0, 3));
+        }
+        // A partial frame header left behind by a batch whose journal line was never written.
+        Files.write(batchFile(updateStep), new byte[] {0, 0, 0, 3, 0, 0}, StandardOpenOption.APPEND);
+        try (CheckpointJournal journal = new CheckpointJournal(directory, true); ParameterStore updated = new ParameterStore(allocator)) {
+            assertEquals(rows(0, 3), journal.loadCommittedBatches(updateStep, updated));
+            assertEquals(3, updated.size());
+        }
+    }
+
+    @Test
+    void ignoresFrameWithInvalidBlockLength() throws IOException {
+        CheckpointJournal.Step updateStep = CheckpointJournal.START.next("update_1", "RETURN 1");
+        try (CheckpointJournal journal = new CheckpointJournal(directory, false)) {
+            journal.batchCommitted(updateStep, 0, 3, batchResults(0, 3));
+        }
+        Files.write(batchFile(updateStep), new byte[] {0, 0, 0, 3, 0, 0, 0, 6, -1, -1, -1, -16}, StandardOpenOption.APPEND);
+        try (CheckpointJournal journal = new CheckpointJournal(directory, true); ParameterStore updated = new ParameterStore(allocator)) {
+            assertEquals(rows(0, 3), journal.loadCommittedBatches(updateStep, updated));
+            assertEquals(3, updated.size());
+        }
+    }
+
+    @Test
+    void resumesTwiceAfterFrameCutShort() throws IOException {
+        CheckpointJournal.Step updateStep = CheckpointJournal.START.next("update_1", "RETURN 1");
+        try (CheckpointJournal journal = new CheckpointJournal(directory, false)) {
+            journal.batchCommitted(updateStep, 0, 3, batchResults(0, 3));
+            journal.batchCommitted(updateStep, 3, 6, batchResults(3, 6));
+        }
+        // A failure part way through the last frame, before its batch was journaled.
+        Path batchFile = batchFile(updateStep);
+        try (FileChannel channel = FileChannel.open(batchFile, StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(batchFile) - 5);
+        }
+        Path journalFile = directory.resolve("journal.log");
+        List<String> lines = Files.readAllLines(journalFile);
+        Files.write(journalFile, lines.subList(0, lines.size() - 1));
+
+        try (CheckpointJournal journal = new CheckpointJournal(directory, true); ParameterStore updated = new ParameterStore(allocator)) {
+            assertEquals(rows(0, 3), journal.loadCommittedBatches(updateStep, updated));
+            journal.batchCommitted(updateStep, 3, 6, batchResults(3, 6));
+            journal.batchCommitted(updateStep, 6, 9, batchResults(6, 9));
+        }
+        try (CheckpointJournal journal = new CheckpointJournal(directory, true); ParameterStore updated = new ParameterStore(allocator)) {
+            assertEquals(rows(0, 9), journal.loadCommittedBatches(updateStep, updated));
+            assertEquals(9, updated.size());
+            for(int row = 0; row < 9; row++) {
+                assertEquals("r" + row, updated.value(row, 0));
+            }
+        }
+    }
+
+    @Test
+    void startsAgainAfterACompletedRun() throws IOException {
+        CheckpointJournal.Step collectStep = CheckpointJournal.START.next("collect_1", "RETURN 1");
+        try (CheckpointJournal journal = new CheckpointJournal(directory, false); ParameterStore collected = new ParameterStore(allocator)) {
+            collected.append(batchResults(0, 2));
+            journal.stepCompleted(collectStep, collected);
+            journal.runCompleted();
+        }
+        try (CheckpointJournal journal = new CheckpointJournal(directory, true)) {
+            assertFalse(journal.isStepCompleted(collectStep));
+        }
+    }
+
+    private Path batchFile(CheckpointJournal.Step step) {
+        return directory.resolve(step.id() + ".batches");
+    }
+}
@@ -0,0 +1,168 @@
+package com.neo4j;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.neo4j.driver.Value;
+import org.neo4j.driver.Values;
+import org.neo4j.driver.internal.InternalNode;
+import org.neo4j.driver.internal.InternalRecord;
+import org.neo4j.driver.internal.value.NodeValue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ParameterStoreTest {
+
+    @TempDir
+    Path spillDirectory;
+
+    private ParameterStore.SegmentAllocator allocator;
+
+    @BeforeEach
+    void setUp() {
+        allocator = new ParameterStore.SegmentAllocator(64L * ParameterStore.SEGMENT_SIZE, spillDirectory);
+    }
+
+    @AfterEach
+    void tearDown() {
+        allocator.close();
+    }
+
+    static org.neo4j.driver.Record record(List<String> keys, Object... values) {
+        return new InternalRecord(keys, Arrays.stream(values).map(value -> value instanceof Value driverValue ? driverValue : Values.value(value)).toArray(Value[]::new));
+    }
+
+    private static Map<String,Object> valuesOfEveryType() {
+        Map<String,Object> values = new LinkedHashMap<String,Object>();
+        values.put("null", null);
+        values.put("false", false);
+        values.put("true", true);
+        values.put("integer", -1234567890123L);
+        values.put("float", 3.25);
+        values.put("string", "requestId-1");
+        values.put("unicode", "\u00e9t\u00e9 \u2603");
+        values.put("list", List.of(1L, "two", List.of(3.0)));
+        values.put("map", Map.of("key", "value", "nested", Map.of("n", 1L)));
+        values.put("bytes", new byte[] {0, 1, -1, 127});
+        values.put("date", LocalDate.of(2024, 2, 29));
+        values.put("time", OffsetTime.of(10, 15, 30, 500, ZoneOffset.ofHours(-5)));
+        values.put("localTime", LocalTime.of(23, 59, 59, 999_999_999));
+        values.put("localDateTime", LocalDateTime.of(1969, 12, 31, 23, 59, 59, 1));
+        values.put("dateTimeRegion", ZonedDateTime.of(2024, 3, 31, 2, 30, 0, 123, ZoneId.of("Europe/Paris")));
+        values.put("dateTimeOffset", ZonedDateTime.of(2024, 1, 1, 0, 0, 0, 0, ZoneOffset.ofHours(9)));
+        values.put("duration", Values.isoDuration(14, -3, 3600, 5).asIsoDuration());
+        values.put("point2d", Values.point(4326, 12.5, -45.25).asPoint());
+        values.put("point3d", Values.point(9157, 1.0, 2.0, 3.0).asPoint());
+        return values;
+    }
+
+    private static void assertRowEquals(Map<String,Object> expected, Map<String,Object> actual) {
+        assertEquals(expected.keySet(), actual.keySet());
+        expected.forEach((key, value) -> {
+            if(value instanceof byte[] bytesValue) assertArrayEquals(bytesValue, (byte[]) actual.get(key), key);
+            else assertEquals(value, actual.get(key), key);
+        });
+    }
+
+    @Test
+    void roundTripsEveryValueType() throws IOException {
+        Map<String,Object> values = valuesOfEveryType();
+        List<String> keys = new ArrayList<String>(values.keySet());
+        try (ParameterStore store = new ParameterStore(allocator); ParameterStore copy = new ParameterStore(allocator)) {
+            store.append(List.of(record(keys, values.values().toArray()), record(keys, values.values().toArray())));
+            assertEquals(2, store.size());
+            assertRowEquals(values, store.rows(0, 1).get(0));
+            assertRowEquals(values, store.rows(1, 2).get(0));
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            store.writeTo(new DataOutputStream(bytes));
+            copy.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+            assertEquals(keys, copy.keys());
+            assertEquals(2, copy.size());
+            assertRowEquals(values, copy.rows(0, 1).get(0));
+            assertRowEquals(values, copy.rows(1, 2).get(0));
+        }
+    }
+
+    @Test
+    void switchesColumnFromIntegersToEncodedValues() throws IOException {
+        List<String> keys = List.of("value");
+        List<Object> expected = Arrays.asList(null, 1L, null, Long.MIN_VALUE, "after", 2L, 2.5, null);
+        try (ParameterStore store = new ParameterStore(allocator); ParameterStore copy = new ParameterStore(allocator)) {
+            for(Object value : expected) {
+                store.append(List.of(record(keys, value == null ? Values.NULL : value)));
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            store.writeTo(new DataOutputStream(bytes));
+            copy.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+            for(int row = 0; row < expected.size(); row++) {
+                assertEquals(expected.get(row), store.value(row, 0), "row " + row);
+                assertEquals(expected.get(row), copy.value(row, 0), "copied row " + row);
+            }
+        }
+    }
+
+    @Test
+    void spillsPastTheHeapBudget() throws IOException {
+        allocator.close();
+        allocator = new ParameterStore.SegmentAllocator(ParameterStore.SEGMENT_SIZE, spillDirectory);
+        List<String> keys = List.of("id", "name", "tags");
+        int numberOfRows = 200_000;
+        try (ParameterStore store = new ParameterStore(allocator)) {
+            List<org.neo4j.driver.Record> chunk = new ArrayList<org.neo4j.driver.Record>();
+            for(int row = 0; row < numberOfRows; row++) {
+                chunk.add(record(keys, (long) row, "name-" + row + "-padding-to-use-up-segments", List.of("t" + row % 7, row)));
+                if(chunk.size() == 10_000) {
+                    store.append(chunk);
+                    chunk.clear();
+                }
+            }
+            assertTrue(allocator.spilledBytes() > 0, "records should have been spilled to a temp file");
+            assertEquals(numberOfRows, store.size());
+            for(int row = 0; row < numberOfRows; row += 997) {
+                Map<String,Object> values = store.rows(row, row + 1).get(0);
+                assertEquals((long) row, values.get("id"));
+                assertEquals("name-" + row + "-padding-to-use-up-segments", values.get("name"));
+                assertEquals(List.of("t" + row % 7, (long) row), values.get("tags"));
+            }
+        }
+    }
+
+    @Test
+    void findsEntityColumns() {
+        List<String> keys = List.of("id", "node");
+        org.neo4j.driver.Record plain = record(keys, 1L, "n");
+        org.neo4j.driver.Record withNode = record(keys, 2L, List.of(new NodeValue(new InternalNode(5))));
+        assertNull(ParameterStore.entityColumn(List.of(plain)));
+        assertEquals("node", ParameterStore.entityColumn(List.of(plain, withNode)));
+        try (ParameterStore store = new ParameterStore(allocator)) {
+            store.append(List.of(plain));
+            assertNull(store.entityColumn());
+            store.append(List.of(withNode));
+            assertEquals("node", store.entityColumn());
+        }
+    }
+}